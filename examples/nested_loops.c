@@ -0,0 +1,36 @@
+begin
+    comment
+        prints the same at every -O level, 382566430 last:
+        values computed in an inner loop are read after it, and
+        products of the loop counters become induction variables
+    ;
+    integer i;
+    integer j;
+    integer sum;
+    integer last;
+
+    i := 0;
+    j := 0;
+    sum := 0;
+    last := 0;
+    while i < 5 do
+        begin
+            integer row;
+            row := i * 12;
+            j := 0;
+            while j < 4 do
+                begin
+                    integer cell;
+                    cell := 12 * (row + j * 3 + i);
+                    sum := sum + cell;
+                    last := cell * 7;
+                    j := j + 1;
+                end;
+            write(row * 12 + j * 3);
+            write(" ");
+            writeln(sum);
+            i := i + 1;
+        end;
+    writeln(last * 12 + sum * 3);
+    writeln(sum * 12 * 12 * 12 * 12 * 12 * 12 + 30);
+end.
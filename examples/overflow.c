@@ -0,0 +1,32 @@
+begin
+    comment
+        products too large for an integer wrap around at every -O level,
+        given 200000000 to read this prints -1894967296, -1294967296,
+        1094967296, -294967296, then 0, 900000000, 1800000000 and
+        -1594967296, then -2147483648, -268435456, 0 and -306783378
+    ;
+    integer a;
+    integer b;
+    integer i;
+
+    a := 0;
+    b := 0;
+    i := 0;
+    read(a);
+    writeln(a * 12);
+    writeln(a * 15);
+    writeln(a * (0 - 16));
+    writeln(a * 20);
+
+    while i < 4 do
+        begin
+            writeln(i * 900000000);
+            i := i + 1;
+        end;
+
+    b := 0 - a * 10 - 147483648;
+    writeln(b / (0 - 1));
+    writeln(b / 8);
+    writeln(b rem 8);
+    writeln(b / 7);
+end.
@@ -0,0 +1,88 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * BasicBlock.java
+ *
+ * Straight line run of IR instructions, entered only at the top and
+ * left only through the JUMP, BRANCH or EXIT at the bottom
+ */
+
+import java.util.ArrayList;
+
+public class BasicBlock {
+    private int    number;  // position in creation order, unique in the program
+    private String label;   // assembly label, null until something needs one
+    private String comment; // printed above the label
+    private ArrayList<Instruction> instructions;
+
+    public BasicBlock(int number, String label) {
+        this.number       = number;
+        this.label        = label;
+        this.instructions = new ArrayList<Instruction>();
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    public void setComment(String comment) {
+        this.comment = comment;
+    }
+
+    public ArrayList<Instruction> getInstructions() {
+        return instructions;
+    }
+
+    public void add(Instruction instruction) {
+        instructions.add(instruction);
+    }
+
+    // last instruction, null for a block that is still being filled
+    public Instruction getTerminator() {
+        if (instructions.isEmpty()) {
+            return null;
+        }
+        Instruction last = instructions.get(instructions.size() - 1);
+        return last.isTerminator() ? last : null;
+    }
+
+    // blocks control can go to from this one
+    public ArrayList<BasicBlock> getSuccessors() {
+        ArrayList<BasicBlock> successors = new ArrayList<BasicBlock>(2);
+        Instruction last = getTerminator();
+        if (last != null) {
+            if (last.getNext() != null) {
+                successors.add(last.getNext());
+            }
+            if (last.getTarget() != null && last.getTarget() != last.getNext()) {
+                successors.add(last.getTarget());
+            }
+        }
+        return successors;
+    }
+
+    // label if there is one, for debugging output
+    public String getName() {
+        return (label != null) ? label : "b" + number;
+    }
+
+    public String toString() {
+        StringBuilder result = new StringBuilder(getName()).append(":\n");
+        for (Instruction i : instructions) {
+            result.append("    ").append(i).append('\n');
+        }
+        return result.toString();
+    }
+}
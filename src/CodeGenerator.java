@@ -3,70 +3,448 @@
  * CS 4110
  * CodeGenerator.java
  *
- * Used by RDParser to generate intermediate code,
- * in this case, MIPS assembly
+ * Lowers the intermediate representation built by RDParser to MIPS
+ * assembly. At -O0 every virtual register lives in a slot of the frame, so
+ * each instruction loads its operands into $t0 and $t1 and stores its
+ * result, exactly as the compiler always has. From -O1 on the program is
+ * first rewritten by the Optimizer and its registers are given machine
+ * registers by the RegisterAllocator; only spilled ones touch the frame.
+ * The code is kept as a list of MipsInstruction lines, which the Peephole
+ * pass cleans up from -O1 on before it is written out.
  */
 
 import java.util.ArrayList; // for code gen buffer
 import java.io.PrintWriter; // write out to file
 import java.io.File;        // for opening files
+import java.io.IOException; // from the caller's Appendable
 
 public class CodeGenerator {
 
-    private static String outfilePath = "out.s"; // output file path
+    public static final String DEFAULT_OUTPUT = "out.s";
 
-    private ArrayList<String> codeGenOut;     // buffer for writing file at the end
+    private String outfilePath; // output file path, null when no file is written
+
+    private ArrayList<MipsInstruction> code;  // buffer for writing file at the end
+    private int   removed;   // lines the Peephole pass took out
+
+    private int[] home;      // frame offset of each virtual register, at -O0
+    private int   nextSlot;  // frame offset for the next register that needs one
+    private RegisterAllocator allocator; // machine register of each virtual register, from -O1
 
     public CodeGenerator() {
-        codeGenOut = new ArrayList<String>();
+        this(DEFAULT_OUTPUT);
+    }
+
+    public CodeGenerator(String outfilePath) {
+        this.outfilePath = outfilePath;
+        code = new ArrayList<MipsInstruction>();
     }
 
     public void writeToFile() {
+        if (outfilePath == null) {
+            return;
+        }
+
         //  begin write out to file
         File file;
         PrintWriter pw;
 		try {
             file = new File(outfilePath);
             pw = new PrintWriter(file);
-
-            for (String s : codeGenOut) {
-                pw.println(s);
-            }
-
+            writeTo(pw);
             pw.close();
         } catch(Exception e) {
 			System.out.println("An error occurred while opening the file.");
 		}
 	}
 
-	public void writeProlog() {
-        codeGenOut.add("#Prolog: next 7 lines start the program");
-        codeGenOut.add(".text");
-        codeGenOut.add(".globl main");
-        codeGenOut.add("main:");
-        codeGenOut.add("move $fp $sp");
-        codeGenOut.add("la $a0 ProgStart");
-        codeGenOut.add("li $v0 4");
-        codeGenOut.add("syscall\n");
-	}
+    // writes the code to out, the same lines writeToFile() writes
+    public void writeTo(Appendable out) throws IOException {
+        String newline = System.lineSeparator();
+        for (MipsInstruction line : code) {
+            out.append(line.toString()).append(newline);
+        }
+    }
+
+    // true once generate() has filled the buffer
+    public boolean hasCode() {
+        return !code.isEmpty();
+    }
+
+    // lowers program, appending its code to the buffer
+    public void generate(IrProgram program, int level) {
+        if (level > 0) {
+            new Optimizer(program).optimize(level);
+            allocator = new RegisterAllocator(program, new Liveness(program));
+        }
+
+        ArrayList<BasicBlock> blocks = program.getBlocks();
+        home     = new int[program.getValueCount()];
+        nextSlot = 0;
+
+        labelJumpTargets(program);
+
+        writeProlog();
+        for (int b = 0; b < blocks.size(); b++) {
+            BasicBlock block  = blocks.get(b);
+            BasicBlock follow = (b + 1 < blocks.size()) ? blocks.get(b + 1) : null;
+
+            if (block.getComment() != null) {
+                code.add(MipsInstruction.comment(block.getComment()));
+            }
+            if (block.getLabel() != null) {
+                code.add(MipsInstruction.label(block.getLabel()));
+            }
+            for (Instruction i : block.getInstructions()) {
+                if (i.getComment() != null) {
+                    code.add(MipsInstruction.comment(i.getComment()));
+                }
+                if (allocator == null) {
+                    lower(i, follow);
+                } else {
+                    lowerWithRegisters(i, follow);
+                }
+            }
+        }
+        writePostlog();
+
+        if (level > 0) {
+            removed = new Peephole(code).run();
+        }
+    }
+
+    // instructions and directives the peephole pass removed, 0 at -O0
+    public int getRemovedCount() {
+        return removed;
+    }
+
+    // appends an instruction and returns it
+    private MipsInstruction emit(String op, String... operands) {
+        MipsInstruction instruction = MipsInstruction.instruction(op, operands);
+        code.add(instruction);
+        return instruction;
+    }
 
+    // gives a label to every block that is reached other than by falling
+    // into it from the block laid out before it
+    private static void labelJumpTargets(IrProgram program) {
+        ArrayList<BasicBlock> blocks = program.getBlocks();
+        for (int b = 0; b < blocks.size(); b++) {
+            Instruction last  = blocks.get(b).getTerminator();
+            BasicBlock follow = (b + 1 < blocks.size()) ? blocks.get(b + 1) : null;
+            if (last == null || last.getOp() == Instruction.EXIT) {
+                continue;
+            }
+            if (last.getTarget() != follow) {
+                needLabel(program, last.getTarget());
+            }
+            if (last.getOp() == Instruction.BRANCH
+                    && (last.getTarget() == follow || last.getNext() != follow)) {
+                needLabel(program, last.getNext());
+            }
+        }
+    }
+
+    private static void needLabel(IrProgram program, BasicBlock block) {
+        if (block.getLabel() == null) {
+            block.setLabel(program.newLabel());
+        }
+    }
+
+    // frame slot of a virtual register, as an operand
+    private String slot(int value) {
+        return home[value] + "($fp)";
+    }
+
+    // gives the register defined by i the next free frame slot
+    private void allocate(Instruction i) {
+        home[i.getDest()] = nextSlot;
+        nextSlot -= SymbolTable.VARIABLE_SIZE;
+    }
+
+    // appends the code for one instruction, follow is the block laid out next
+    private void lower(Instruction i, BasicBlock follow) {
+        switch (i.getOp()) {
+            case Instruction.CONST:
+                allocate(i);
+                emit("li", "$t0", ((i.getText() != null) ? i.getText() : "" + i.getValue()));
+                emit("sw", "$t0", slot(i.getDest()));
+                break;
+            case Instruction.LOAD:
+                // read straight from the variable's own slot
+                home[i.getDest()] = i.getVariable().getOffset();
+                break;
+            case Instruction.STORE:
+                emit("lw", "$t0", slot(i.getLeft()));
+                emit("sw", "$t0", i.getVariable().getOffset() + "($fp)");
+                break;
+            case Instruction.READ:
+                emit("li", "$v0", "5");
+                emit("syscall");
+                emit("sw", "$v0", i.getVariable().getOffset() + "($fp)");
+                break;
+            case Instruction.ADD:
+            case Instruction.SUB:
+            case Instruction.AND:
+            case Instruction.OR:
+                allocate(i);
+                emit("lw", "$t0", slot(i.getLeft()));
+                emit("lw", "$t1", slot(i.getRight()));
+                emit(OPERATION[i.getOp()], "$t0", "$t0", "$t1");
+                emit("sw", "$t0", slot(i.getDest()));
+                break;
+            case Instruction.MUL:
+            case Instruction.DIV:
+            case Instruction.REM:
+                allocate(i);
+                emit("lw", "$t0", slot(i.getLeft()));
+                emit("lw", "$t1", slot(i.getRight()));
+                emit(OPERATION[i.getOp()], "$t0", "$t1");
+                emit((i.getOp() == Instruction.REM) ? "mfhi" : "mflo", "$t0");
+                emit("sw", "$t0", slot(i.getDest()));
+                break;
+            case Instruction.LESS:
+            case Instruction.GREATER:
+                allocate(i);
+                emit("lw", "$t0", slot(i.getLeft()));
+                emit("lw", "$t1", slot(i.getRight()));
+                emit(OPERATION[i.getOp()], "$t0", "$t0", "$t1");
+                emit("sw", "$t0", slot(i.getDest()));
+                break;
+            case Instruction.EQUAL:
+            case Instruction.NOT_EQUAL:
+                allocate(i);
+                emit("lw", "$t0", slot(i.getLeft()));
+                emit("lw", "$t1", slot(i.getRight()));
+                emit(OPERATION[i.getOp()], "$t0", "$t1", "$t0");
+                emit("sw", "$t0", slot(i.getDest()));
+                break;
+            case Instruction.NOT:
+                // complemented in place, in the operand's slot
+                home[i.getDest()] = home[i.getLeft()];
+                emit("lw", "$t0", slot(i.getLeft()));
+                emit("not", "$t0", "$t0");
+                emit("sw", "$t0", slot(i.getDest()));
+                break;
+            case Instruction.STRING:
+                code.add(MipsInstruction.text(".data "));
+                code.add(MipsInstruction.text(i.getLabel() + ": .asciiz \"" + i.getText() + "\""));
+                code.add(MipsInstruction.text(".text "));
+                break;
+            case Instruction.WRITE_INT:
+                emit("lw", "$a0", slot(i.getLeft()));
+                emit("li", "$v0", "1");
+                emit("syscall").spaced();
+                break;
+            case Instruction.WRITE_STRING:
+                emit("la", "$a0", i.getLabel());
+                emit("li", "$v0", "4");
+                emit("syscall").spaced();
+                break;
+            case Instruction.WRITE_NEWLINE:
+                emit("la", "$a0", "endl");
+                emit("li", "$v0", "4");
+                emit("syscall").spaced();
+                break;
+            case Instruction.JUMP:
+                if (i.getTarget() != follow) {
+                    emit("j", i.getTarget().getLabel());
+                }
+                break;
+            case Instruction.BRANCH:
+                emit("lw", "$t0", slot(i.getLeft()));
+                if (i.getTarget() == follow) {
+                    emit("bne", "$t0", "$zero", i.getNext().getLabel());
+                } else {
+                    emit("beq", "$t0", "$zero", i.getTarget().getLabel());
+                    if (i.getNext() != follow) {
+                        emit("j", i.getNext().getLabel());
+                    }
+                }
+                break;
+            case Instruction.EXIT:
+                break;
+        }
+    }
+
+    // register holding value, loaded into scratch first when it is spilled
+    private String use(int value, String scratch) {
+        if (!allocator.isSpilled(value)) {
+            return allocator.getRegister(value);
+        }
+        emit("lw", scratch, allocator.getSlot(value) + "($fp)");
+        return scratch;
+    }
+
+    // register to compute value into, see define()
+    private String result(int value) {
+        return allocator.isSpilled(value) ? RegisterAllocator.SCRATCH_LEFT : allocator.getRegister(value);
+    }
+
+    // stores value to its slot after computing it, when it is spilled
+    private void define(int value) {
+        if (allocator.isSpilled(value)) {
+            emit("sw", RegisterAllocator.SCRATCH_LEFT, allocator.getSlot(value) + "($fp)");
+        }
+    }
+
+    // appends the code for one instruction when values are in machine registers
+    private void lowerWithRegisters(Instruction i, BasicBlock follow) {
+        String left;
+        String right;
+        String dest;
+        switch (i.getOp()) {
+            case Instruction.CONST:
+                emit("li", result(i.getDest()), "" + i.getValue());
+                define(i.getDest());
+                break;
+            case Instruction.COPY:
+                left = use(i.getLeft(), RegisterAllocator.SCRATCH_LEFT);
+                dest = result(i.getDest());
+                if (!dest.equals(left)) {
+                    emit("move", dest, left);
+                }
+                define(i.getDest());
+                break;
+            case Instruction.READ:
+                emit("li", "$v0", "5");
+                emit("syscall");
+                emit("move", result(i.getDest()), "$v0");
+                define(i.getDest());
+                break;
+            case Instruction.MUL:
+            case Instruction.ADD:
+            case Instruction.SUB:
+            case Instruction.AND:
+            case Instruction.OR:
+            case Instruction.LESS:
+            case Instruction.GREATER:
+            case Instruction.EQUAL:
+            case Instruction.NOT_EQUAL:
+                left  = use(i.getLeft(), RegisterAllocator.SCRATCH_LEFT);
+                right = use(i.getRight(), RegisterAllocator.SCRATCH_RIGHT);
+                emit(i.isWrapping() ? WRAPPING_OPERATION[i.getOp()] : REGISTER_OPERATION[i.getOp()],
+                    result(i.getDest()), left, right);
+                define(i.getDest());
+                break;
+            case Instruction.DIV:
+            case Instruction.REM:
+                left  = use(i.getLeft(), RegisterAllocator.SCRATCH_LEFT);
+                right = use(i.getRight(), RegisterAllocator.SCRATCH_RIGHT);
+                emit("div", left, right);
+                emit((i.getOp() == Instruction.REM) ? "mfhi" : "mflo", result(i.getDest()));
+                define(i.getDest());
+                break;
+            case Instruction.SHIFT_LEFT:
+            case Instruction.SHIFT_RIGHT:
+            case Instruction.SHIFT_RIGHT_LOGICAL:
+                left = use(i.getLeft(), RegisterAllocator.SCRATCH_LEFT);
+                emit(SHIFT[i.getOp() - Instruction.SHIFT_LEFT], result(i.getDest()), left, "" + i.getValue());
+                define(i.getDest());
+                break;
+            case Instruction.MUL_HIGH:
+                left  = use(i.getLeft(), RegisterAllocator.SCRATCH_LEFT);
+                right = use(i.getRight(), RegisterAllocator.SCRATCH_RIGHT);
+                emit("mult", left, right);
+                emit("mfhi", result(i.getDest()));
+                define(i.getDest());
+                break;
+            case Instruction.NOT:
+                left = use(i.getLeft(), RegisterAllocator.SCRATCH_LEFT);
+                if (i.getType() == 'l') {
+                    emit("xori", result(i.getDest()), left, "1");
+                } else {
+                    emit("not", result(i.getDest()), left);
+                }
+                define(i.getDest());
+                break;
+            case Instruction.WRITE_INT:
+                if (allocator.isSpilled(i.getLeft())) {
+                    use(i.getLeft(), "$a0");
+                } else {
+                    emit("move", "$a0", allocator.getRegister(i.getLeft()));
+                }
+                emit("li", "$v0", "1");
+                emit("syscall").spaced();
+                break;
+            case Instruction.BRANCH:
+                left  = use(i.getLeft(), RegisterAllocator.SCRATCH_LEFT);
+                right = "$zero";
+                int compare = Instruction.NOT_EQUAL;
+                if (i.getCompare() != Instruction.NONE) {
+                    right   = use(i.getRight(), RegisterAllocator.SCRATCH_RIGHT);
+                    compare = i.getCompare();
+                }
+                if (i.getTarget() == follow) {
+                    emit(BRANCH_IF[compare], left, right, i.getNext().getLabel());
+                } else {
+                    emit(BRANCH_UNLESS[compare], left, right, i.getTarget().getLabel());
+                    if (i.getNext() != follow) {
+                        emit("j", i.getNext().getLabel());
+                    }
+                }
+                break;
+            default:
+                // strings, writes of constants and jumps need no registers
+                lower(i, follow);
+                break;
+        }
+    }
 
-	public void writePostlog() {
-        codeGenOut.add("\n#Postlog: next 8 lines will end all programs");
-        codeGenOut.add("la $a0 ProgEnd");
-        codeGenOut.add("li $v0 4");
-        codeGenOut.add("syscall");
-        codeGenOut.add("li $v0 10");
-        codeGenOut.add("syscall");
-        codeGenOut.add(".data");
-        codeGenOut.add("ProgStart: .asciiz \"Program Start\\n\"");
-        codeGenOut.add("ProgEnd:   .asciiz \"Program End\\n\"");
-        codeGenOut.add("True:      .asciiz \"True\"");
-        codeGenOut.add("False:     .asciiz \"False\"");
-        codeGenOut.add("endl:      .asciiz \"\\n\"");
+    // mnemonics of the opcodes with three register operands, from -O1
+    private static final String[] REGISTER_OPERATION = {
+        null, null, null, null, "add", "sub", "mul", null, null, "and",
+        "or", "slt", "sgt", "seq", "sne"
+    };
+
+    // the same for an ADD or SUB that wraps around instead of trapping
+    private static final String[] WRAPPING_OPERATION = {
+        null, null, null, null, "addu", "subu"
+    };
+
+    // mnemonics of SHIFT_LEFT, SHIFT_RIGHT and SHIFT_RIGHT_LOGICAL
+    private static final String[] SHIFT = { "sll", "sra", "srl" };
+
+    // branches taken when the relational opcode holds, and when it does not
+    private static final String[] BRANCH_IF = {
+        null, null, null, null, null, null, null, null, null, null,
+        null, "blt", "bgt", "beq", "bne"
+    };
+    private static final String[] BRANCH_UNLESS = {
+        null, null, null, null, null, null, null, null, null, null,
+        null, "bge", "ble", "bne", "beq"
+    };
+
+    // mnemonics of the arithmetic and relational opcodes
+    private static final String[] OPERATION = {
+        null, null, null, null, "add", "sub", "mult", "div", "div", "and",
+        "or", "slt", "sgt", "seq", "sne"
+    };
+
+	private void writeProlog() {
+        code.add(MipsInstruction.text("#Prolog: next 7 lines start the program"));
+        code.add(MipsInstruction.text(".text"));
+        code.add(MipsInstruction.text(".globl main"));
+        code.add(MipsInstruction.text("main:"));
+        emit("move", "$fp", "$sp");
+        emit("la", "$a0", "ProgStart");
+        emit("li", "$v0", "4");
+        emit("syscall").spaced();
 	}
 
-	public void writeCode(String code) {
-		codeGenOut.add(code);
+
+	private void writePostlog() {
+        code.add(MipsInstruction.text("\n#Postlog: next 8 lines will end all programs"));
+        emit("la", "$a0", "ProgEnd");
+        emit("li", "$v0", "4");
+        emit("syscall");
+        emit("li", "$v0", "10");
+        emit("syscall");
+        code.add(MipsInstruction.text(".data"));
+        code.add(MipsInstruction.text("ProgStart: .asciiz \"Program Start\\n\""));
+        code.add(MipsInstruction.text("ProgEnd:   .asciiz \"Program End\\n\""));
+        code.add(MipsInstruction.text("True:      .asciiz \"True\""));
+        code.add(MipsInstruction.text("False:     .asciiz \"False\""));
+        code.add(MipsInstruction.text("endl:      .asciiz \"\\n\""));
 	}
 }
@@ -0,0 +1,293 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * CompilationCache.java
+ *
+ * On-disk cache of compilations, turned on with --cache. An entry holds
+ * the messages a compilation printed and the code it wrote, and is named
+ * by a SHA-256 hash of the source bytes, the compiler build and the
+ * options that change either, so an unchanged source is never scanned
+ * or parsed again. Entries are written to a temporary file and moved in
+ * place, so threads and processes sharing the directory only ever see
+ * whole entries.
+ *
+ * The directory is kept under a size cap by removing the entries used
+ * least recently; a hit sets the modification time of its entry, which
+ * is what the entries are ordered by. Hits and misses are counted in the
+ * stats file of the directory.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+public class CompilationCache {
+    public static final long DEFAULT_SIZE = 64L << 20; // bytes of entries kept
+
+    // changed whenever generated code changes without the class files changing
+    private static final String VERSION = "agc-1";
+    private static final String ENTRY   = ".entry";   // suffix of entry files
+
+    // only one thread of this process holds the directory's file lock at a time
+    private static final Object LOCK = new Object();
+
+    private static String build; // the compiler build, see build()
+
+    private Path directory;
+    private long maxSize;
+
+    // a compilation found in the cache
+    public static class Entry {
+        private boolean compiled;
+        private byte[]  messages;
+        private byte[]  code;     // null when no code was written
+
+        public Entry(boolean compiled, byte[] messages, byte[] code) {
+            this.compiled = compiled;
+            this.messages = messages;
+            this.code     = code;
+        }
+
+        // true when it compiled without errors
+        public boolean isCompiled() {
+            return compiled;
+        }
+
+        public byte[] getMessages() {
+            return messages;
+        }
+
+        public byte[] getCode() {
+            return code;
+        }
+    }
+
+    public CompilationCache(Path directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize   = maxSize;
+        Files.createDirectories(directory);
+    }
+
+    // the name of the entry for compiling source with options
+    public static String key(byte[] source, Options options) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String header = VERSION + ' ' + build() + " -O" + options.getOptimization()
+                + " --max-errors=" + options.getMaxErrors() + '\n';
+            digest.update(header.getBytes(StandardCharsets.UTF_8));
+            digest.update(source);
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the entry named key, null on a miss; counts the hit or miss
+    public Entry get(String key) throws IOException {
+        Path file = directory.resolve(key + ENTRY);
+        Entry entry = null;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)));
+            boolean compiled = in.readBoolean();
+            byte[] messages  = CompileServer.readBytes(in, Integer.MAX_VALUE);
+            byte[] code      = CompileServer.readBytes(in, Integer.MAX_VALUE);
+            entry = new Entry(compiled, messages, code);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // a miss
+        } catch (EOFException e) {
+            // not a whole entry, a miss as well
+        }
+        count(entry != null);
+        return entry;
+    }
+
+    // stores entry as key, then removes old entries until the cap is met
+    public void put(String key, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBoolean(entry.isCompiled());
+        CompileServer.writeBytes(out, entry.getMessages());
+        CompileServer.writeBytes(out, entry.getCode());
+        out.close();
+
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        Files.write(temporary, bytes.toByteArray());
+        Files.move(temporary, directory.resolve(key + ENTRY), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        evict();
+    }
+
+    // hits, misses, entries and their size, for --cache-stats
+    public String getStatistics() throws IOException {
+        long[] counts = readCounts();
+        long size = 0;
+        ArrayList<Path> entries = entries();
+        for (Path file : entries) {
+            size += sizeOf(file);
+        }
+        long total = counts[0] + counts[1];
+        return "Cache: " + counts[0] + " hits, " + counts[1] + " misses"
+            + ((total == 0) ? "" : " (" + (100 * counts[0] / total) + "% hits)")
+            + ", " + entries.size() + " entries, " + size + " of " + maxSize + " bytes";
+    }
+
+    // removes the entries used least recently while there are more than maxSize bytes
+    private void evict() throws IOException {
+        synchronized (LOCK) {
+            FileChannel channel = lock();
+            try {
+                final ArrayList<Path> entries = entries();
+                final long[] used = new long[entries.size()];
+                long size = 0;
+                for (int n = 0; n < entries.size(); n++) {
+                    used[n] = lastModified(entries.get(n));
+                    size += sizeOf(entries.get(n));
+                }
+                if (size <= maxSize) {
+                    return;
+                }
+
+                ArrayList<Integer> order = new ArrayList<Integer>();
+                for (int n = 0; n < entries.size(); n++) {
+                    order.add(n);
+                }
+                Collections.sort(order, new Comparator<Integer>() {
+                    public int compare(Integer a, Integer b) {
+                        return Long.compare(used[a], used[b]);
+                    }
+                });
+                for (int n = 0; n < order.size() && size > maxSize; n++) {
+                    Path file = entries.get(order.get(n));
+                    size -= sizeOf(file);
+                    Files.deleteIfExists(file);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // adds a hit or a miss to the stats file
+    private void count(boolean hit) throws IOException {
+        synchronized (LOCK) {
+            FileChannel channel = lock();
+            try {
+                long[] counts = readCounts();
+                counts[hit ? 0 : 1]++;
+                Files.write(directory.resolve("stats"),
+                    (counts[0] + " " + counts[1] + "\n").getBytes(StandardCharsets.UTF_8));
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // hits and misses so far
+    private long[] readCounts() throws IOException {
+        long[] counts = new long[2];
+        Path stats = directory.resolve("stats");
+        if (Files.exists(stats)) {
+            String[] fields = new String(Files.readAllBytes(stats), StandardCharsets.UTF_8).trim().split(" ");
+            try {
+                counts[0] = Long.parseLong(fields[0]);
+                counts[1] = Long.parseLong(fields[1]);
+            } catch (RuntimeException e) {
+                // a damaged stats file starts counting again
+            }
+        }
+        return counts;
+    }
+
+    // locks the directory against other processes until the channel is closed
+    private FileChannel lock() throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+        channel.lock();
+        return channel;
+    }
+
+    private ArrayList<Path> entries() throws IOException {
+        ArrayList<Path> entries = new ArrayList<Path>();
+        DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + ENTRY);
+        try {
+            for (Path file : files) {
+                entries.add(file);
+            }
+        } finally {
+            files.close();
+        }
+        return entries;
+    }
+
+    // size of file, 0 once another process removed it
+    private static long sizeOf(Path file) throws IOException {
+        try {
+            return Files.size(file);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    private static long lastModified(Path file) throws IOException {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    // the compiler's class files, as the time the newest of them was
+    // changed and their total size, so rebuilding the compiler starts a
+    // new set of entries
+    private static synchronized String build() {
+        if (build != null) {
+            return build;
+        }
+        long newest = 0;
+        long size   = 0;
+        try {
+            URL location = CompilationCache.class.getProtectionDomain().getCodeSource().getLocation();
+            File source  = new File(location.toURI());
+            File[] files = source.isDirectory() ? source.listFiles() : new File[] { source };
+            for (File file : files) {
+                if (file.isFile() && (file == source || file.getName().endsWith(".class"))) {
+                    newest = Math.max(newest, file.lastModified());
+                    size  += file.length();
+                }
+            }
+        } catch (URISyntaxException e) {
+            // no better version than VERSION
+        } catch (RuntimeException e) {
+            // no code source, the same
+        }
+        build = newest + "/" + size;
+        return build;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * CompileClient.java
+ *
+ * Thin client of CompileServer, taking the same arguments as Main:
+ *
+ *   java CompileClient [--port=N] sourcefile.c [options]
+ *
+ * The compilation is sent to the server on the loopback port, 4110 by
+ * default, and its messages printed and its code written here; the
+ * server's challenge is answered with the secret in ~/.agc-server-token.
+ * When no server answers, there is no secret yet, or the server rejects
+ * the request, the client compiles in its own process just like Main.
+ * Batch compilations and watch mode are always done here, they only
+ * start the JVM once anyway.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+public class CompileClient {
+    private static final int CONNECT_TIMEOUT = 250; // milliseconds to wait for the server
+    private static final int CHALLENGE_SIZE  = 64;  // most bytes read as a challenge
+
+    public static void main(String[] args) {
+        try {
+            int port = CompileServer.DEFAULT_PORT;
+            ArrayList<String> rest = new ArrayList<String>();
+            for (String arg : args) {
+                if (arg.startsWith("--port=")) {
+                    port = parsePort(arg);
+                } else {
+                    rest.add(arg);
+                }
+            }
+            args = rest.toArray(new String[rest.size()]);
+
+            Options options = Options.parse(args);
+            if (options.isServer() || options.isBatch() || options.isWatch()) {
+                Main.run(options, null);
+                return;
+            }
+
+            // standard input can only be read once, whoever ends up compiling it
+            byte[] source = options.isStandardInput() ? readAll(System.in) : null;
+            if (!send(port, args, source, options)) {
+                Reader input = (source == null)
+                    ? null : new StringReader(new String(source, StandardCharsets.UTF_8));
+                Main.run(options, input);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    // has the server compile, returns false when it could not
+    private static boolean send(int port, String[] args, byte[] source, Options options) throws IOException {
+        byte[] token;
+        try {
+            token = CompileServer.readToken(false);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        if (token == null) {
+            return false; // no server was ever started by this user
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            return false;
+        }
+
+        try {
+            // a server of an older version waits for the request instead
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            socket.setSoTimeout(CONNECT_TIMEOUT);
+            byte[] challenge = CompileServer.readBytes(in, CHALLENGE_SIZE);
+            socket.setSoTimeout(0);
+            if (challenge == null) {
+                return false;
+            }
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(CompileServer.PROTOCOL);
+            CompileServer.writeBytes(out, CompileServer.sign(token, challenge));
+            out.writeUTF(Paths.get("").toAbsolutePath().toString());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            CompileServer.writeBytes(out, source);
+            out.flush();
+
+            int    status   = in.readInt();
+            byte[] messages = CompileServer.readBytes(in, Integer.MAX_VALUE);
+            byte[] code     = CompileServer.readBytes(in, Integer.MAX_VALUE);
+            if (status == CompileServer.REJECTED) {
+                return false;
+            }
+            System.out.write(messages);
+            System.out.flush();
+            if (code != null) {
+                Files.write(Paths.get(options.getOutputPath()), code);
+            }
+            return true;
+        } catch (IOException e) {
+            // the server went away before answering, or never challenged
+            return false;
+        } catch (IllegalArgumentException e) {
+            // something else listens on the port
+            return false;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static int parsePort(String arg) {
+        try {
+            return Integer.parseInt(arg.substring("--port=".length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a port number in " + arg);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1 << 16];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            bytes.write(chunk, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * CompileServer.java
+ *
+ * Compile server started by java Main --server[=port]. Most of the time
+ * of compiling a small program goes to starting the JVM and running the
+ * compiler's code before it is compiled itself; a server pays for that
+ * once and keeps the code warm for every compilation after. It listens on
+ * the loopback address only and compiles each request on its own thread.
+ *
+ * Java 8 has no Unix domain sockets, so the server takes TCP on loopback,
+ * which every local user can connect to. Only clients of the same user
+ * are served: the server keeps a random secret in ~/.agc-server-token,
+ * readable by its owner only, opens every connection with a random
+ * challenge and serves the request only when the client answers with the
+ * challenge signed with that secret. The secret itself is never sent.
+ * A client that does not answer in time is dropped, and a bounded pool of
+ * workers takes the connections, so idle ones cannot use up the server.
+ *
+ * A request is the client's working directory and command line, plus
+ * the source when the client read it from standard input. The answer is
+ * what Main would have printed and the generated code, which the client
+ * writes out itself. Relative paths are taken from the client's working
+ * directory; the source, listing and cache files are read and written
+ * by the server, so it should run as the same user as its clients.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class CompileServer {
+    public static final int    DEFAULT_PORT = 4110;
+    public static final String TOKEN_FILE   = ".agc-server-token"; // in the home directory
+
+    // first int of every request, changed whenever the format changes
+    static final int PROTOCOL = 2;
+
+    // status, first int of every answer
+    static final int COMPILED = 0; // compiled without errors
+    static final int FAILED   = 1; // compiled with errors
+    static final int REJECTED = 2; // the request cannot be served, the client compiles it itself
+
+    private static final int MAX_SOURCE = 1 << 26; // largest source accepted inline, in bytes
+    private static final int TOKEN_SIZE = 32;      // bytes in the secret and in a challenge
+
+    // a client may only keep a worker waiting this many milliseconds for
+    // the answer to the challenge, then for each read of its request
+    private static final int AUTH_TIMEOUT    = 2000;
+    private static final int REQUEST_TIMEOUT = 30000;
+
+    // connections waiting for a worker beyond these are closed at once, and
+    // their clients compile by themselves
+    private static final int WORKERS = 2 * Runtime.getRuntime().availableProcessors();
+    private static final int WAITING = 64;
+    private static final String SIGNATURE = "HmacSHA256";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private int port;
+    private byte[] token; // the secret clients sign challenges with
+
+    public CompileServer(int port) {
+        this.port = port;
+    }
+
+    // serves requests until the process is stopped
+    public void run() throws IOException {
+        token = readToken(true);
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(WAITING));
+        workers.allowCoreThreadTimeOut(true);
+        System.out.println("Compile server listening on " + server.getLocalSocketAddress());
+        try {
+            while (true) {
+                final Socket client = server.accept();
+                try {
+                    workers.execute(new Runnable() {
+                        public void run() {
+                            serve(client);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // too busy, the client falls back to compiling itself
+                    client.close();
+                }
+            }
+        } finally {
+            workers.shutdown();
+            server.close();
+        }
+    }
+
+    // answers the one request on socket
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(AUTH_TIMEOUT);
+            DataInputStream  in  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] challenge = new byte[TOKEN_SIZE];
+            RANDOM.nextBytes(challenge);
+            writeBytes(out, challenge);
+            out.flush();
+            try {
+                answer(socket, in, out, challenge);
+            } catch (IllegalArgumentException e) {
+                out.writeInt(REJECTED);
+                writeBytes(out, (e.getMessage() + '\n').getBytes(StandardCharsets.UTF_8));
+                out.writeInt(-1);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // the client went away, nothing to answer
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void answer(Socket socket, DataInputStream in, DataOutputStream out, byte[] challenge)
+            throws IOException {
+        if (in.readInt() != PROTOCOL) {
+            throw new IllegalArgumentException("Client and server are different versions");
+        }
+        byte[] signed = readBytes(in, TOKEN_SIZE);
+        if (signed == null || !MessageDigest.isEqual(signed, sign(token, challenge))) {
+            // another user, or a client without the secret
+            throw new IllegalArgumentException("The server belongs to another user");
+        }
+        socket.setSoTimeout(REQUEST_TIMEOUT);
+        Path directory = Paths.get(in.readUTF());
+        String[] args  = new String[in.readInt()];
+        for (int n = 0; n < args.length; n++) {
+            args[n] = in.readUTF();
+        }
+        byte[] source = readBytes(in, MAX_SOURCE);
+
+        Options options = Options.parse(args);
+        options.resolve(directory);
+        if (options.isServer() || options.isBatch() || options.isWatch()) {
+            throw new IllegalArgumentException("A server compiles one file per request");
+        } else if (options.isStandardInput() && source == null) {
+            throw new IllegalArgumentException("No source sent for standard input");
+        }
+        Reader input = (source == null) ? null : new StringReader(new String(source, StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        PrintStream   printed  = new PrintStream(messages);
+        StringWriter  assembly = new StringWriter();
+        boolean compiled = true;
+        try {
+            if (!options.isStatisticsOnly()) {
+                compiled = Main.compile(options, options.getSourcePath(), input, null,
+                    options.getListingPath(), printed, assembly, null);
+            }
+            if (options.isCacheStatistics()) {
+                Main.printStatistics(options, printed);
+            }
+        } catch (IOException e) {
+            printed.println(e.getMessage());
+            compiled = false;
+        }
+        printed.close();
+
+        out.writeInt(compiled ? COMPILED : FAILED);
+        writeBytes(out, messages.toByteArray());
+        String code = assembly.toString();
+        writeBytes(out, code.isEmpty() ? null : code.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // the secret of this user, from TOKEN_FILE; when there is none yet it is
+    // made if create is set, else null is returned. The file must not be
+    // readable or writable by anyone but its owner
+    static byte[] readToken(boolean create) throws IOException {
+        Path path = Paths.get(System.getProperty("user.home"), TOKEN_FILE);
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (create && !Files.exists(path)) {
+            byte[] token = new byte[TOKEN_SIZE];
+            RANDOM.nextBytes(token);
+            try {
+                if (posix) {
+                    // no one else may see it even while it is written
+                    Files.createFile(path, PosixFilePermissions.asFileAttribute(
+                        EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+                } else {
+                    Files.createFile(path);
+                }
+                Files.write(path, token);
+            } catch (FileAlreadyExistsException e) {
+                // another server made it first, use that one
+            }
+        } else if (!Files.exists(path)) {
+            return null;
+        }
+
+        if (posix) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+            permissions.retainAll(EnumSet.of(PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE,
+                PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_WRITE));
+            if (!permissions.isEmpty()) {
+                throw new IOException(path + " is open to other users, only its owner may read it"
+                    + " (chmod 600 " + path + ")");
+            }
+        }
+        byte[] token = Files.readAllBytes(path);
+        if (token.length != TOKEN_SIZE) {
+            throw new IOException(path + " is not a server token, delete it to have a new one made");
+        }
+        return token;
+    }
+
+    // challenge signed with token, what a client answers it with
+    static byte[] sign(byte[] token, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance(SIGNATURE);
+            mac.init(new SecretKeySpec(token, SIGNATURE));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            // every Java platform has HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // writes bytes with their length in front, -1 for null
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    // reads what writeBytes() wrote, at most max bytes
+    static byte[] readBytes(DataInputStream in, int max) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        } else if (length > max) {
+            throw new IllegalArgumentException("Request of " + length + " bytes is too large");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * Compiler.java
+ *
+ * The compiler as a library: compiles a source held in memory, as a
+ * CharSequence, a Reader or UTF-8 bytes in a ByteBuffer, and writes the
+ * code to an Appendable or a WritableByteChannel. Nothing is read from or
+ * written to files, errors are returned as Diagnostics rather than
+ * printed, so many sources can be compiled in one process, e.g.
+ *
+ *   Compiler compiler = new Compiler(1, RDParser.DEFAULT_MAX_ERRORS);
+ *   StringBuilder code = new StringBuilder();
+ *   if (!compiler.compile("begin integer a; a := 1; end.", code)) {
+ *       for (Diagnostic d : compiler.getDiagnostics()) ...
+ *   }
+ *
+ * A Compiler keeps its buffers and symbol pool from one compilation to
+ * the next, so compiling many small sources does not allocate them again
+ * each time. It is not thread safe; use one Compiler per thread.
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Compiler {
+    private static final int BUFFER_SIZE = 1 << 12; // initial size of the reused buffers
+
+    private int optimization; // -O level, see CodeGenerator
+    private int maxErrors;    // parse errors reported before giving up
+
+    // reused by every compilation
+    private SymbolPool     symbols;
+    private CharsetEncoder encoder; // UTF-8, unpaired surrogates become '?' like in Scanner
+    private ByteBuffer     bytes;   // a source encoded for the Scanner, or code for a channel
+    private char[]         chunk;   // characters read from a Reader
+    private StringBuilder  text;    // everything read from a Reader
+    private StringBuilder  code;    // code on its way to a channel
+
+    // results of the last compilation
+    private ArrayList<Diagnostic> diagnostics;
+    private int removed;
+
+    public Compiler() {
+        this(0, RDParser.DEFAULT_MAX_ERRORS);
+    }
+
+    public Compiler(int optimization, int maxErrors) {
+        this.optimization = optimization;
+        this.maxErrors    = maxErrors;
+        this.symbols      = new SymbolPool();
+        this.encoder      = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes        = ByteBuffer.allocate(BUFFER_SIZE);
+        this.chunk        = new char[BUFFER_SIZE];
+        this.text         = new StringBuilder(BUFFER_SIZE);
+        this.code         = new StringBuilder(BUFFER_SIZE);
+        this.diagnostics  = new ArrayList<Diagnostic>();
+        this.removed      = 0;
+    }
+
+    // compiles source, appending the code to assembly when there were no
+    // errors; returns false when there were, see getDiagnostics()
+    public boolean compile(CharSequence source, Appendable assembly) throws IOException {
+        return compile(encode(source), assembly);
+    }
+
+    // the same for what source reads, which is not closed
+    public boolean compile(Reader source, Appendable assembly) throws IOException {
+        return compile(encode(read(source)), assembly);
+    }
+
+    // the same for the UTF-8 bytes from source's position to its limit,
+    // source itself is left as it is
+    public boolean compile(ByteBuffer source, Appendable assembly) throws IOException {
+        symbols.clear();
+        Scanner scan   = new Scanner(source, symbols, true);
+        RDParser parse = new RDParser(scan, new SymbolTable(), ParseListener.NONE, maxErrors,
+            optimization, null);
+
+        // in the order Main prints them
+        diagnostics.clear();
+        diagnostics.addAll(parse.getErrors());
+        diagnostics.addAll(scan.getErrors());
+
+        CodeGenerator codeGen = parse.getCodeGenerator();
+        removed = codeGen.getRemovedCount();
+        if (!diagnostics.isEmpty()) {
+            // code generated past an error, such as a type mismatch, is not
+            // the program that was asked for
+            return false;
+        }
+        if (codeGen.hasCode()) {
+            codeGen.writeTo(assembly);
+        }
+        return true;
+    }
+
+    // compile() writing the code to a channel, encoded as UTF-8
+    public boolean compile(CharSequence source, WritableByteChannel assembly) throws IOException {
+        return compile(encode(source), assembly);
+    }
+
+    public boolean compile(Reader source, WritableByteChannel assembly) throws IOException {
+        return compile(encode(read(source)), assembly);
+    }
+
+    public boolean compile(ByteBuffer source, WritableByteChannel assembly) throws IOException {
+        code.setLength(0);
+        boolean compiled = compile(source, code);
+        ByteBuffer encoded = encode(code);
+        while (encoded.hasRemaining()) {
+            assembly.write(encoded);
+        }
+        return compiled;
+    }
+
+    // errors of the last compilation, parse errors first, then scan errors;
+    // only valid until the next one
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    // instructions the peephole pass removed in the last compilation, 0 at -O0
+    public int getRemovedCount() {
+        return removed;
+    }
+
+    // everything source reads, in text
+    private StringBuilder read(Reader source) throws IOException {
+        text.setLength(0);
+        int n;
+        while ((n = source.read(chunk)) != -1) {
+            text.append(chunk, 0, n);
+        }
+        return text;
+    }
+
+    // characters as UTF-8 in bytes, which grows until they fit; returns
+    // bytes ready to be read
+    private ByteBuffer encode(CharSequence characters) {
+        CharBuffer in = CharBuffer.wrap(characters);
+        while (true) {
+            bytes.clear();
+            encoder.reset();
+            CoderResult result = encoder.encode(in, bytes, true);
+            if (!result.isOverflow()) {
+                result = encoder.flush(bytes);
+            }
+            if (!result.isOverflow()) {
+                bytes.flip();
+                return bytes;
+            }
+            // every char takes at most 3 bytes
+            bytes = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, characters.length() * 3));
+            in.rewind();
+        }
+    }
+}
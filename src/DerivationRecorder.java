@@ -0,0 +1,23 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * DerivationRecorder.java
+ *
+ * ParseListener that records the leftmost derivation as a list of
+ * production rule numbers
+ */
+
+public class DerivationRecorder implements ParseListener {
+    private StringBuilder derivation = new StringBuilder();
+
+    public void enterRule(int rule) {
+        derivation.append(rule).append(' ');
+    }
+
+    public void trace(String event) {
+    }
+
+    public String toString() {
+        return derivation.toString();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * Diagnostic.java
+ *
+ * An error message with the line and column it was found at
+ */
+
+public class Diagnostic {
+    private int    line;    // 1 based line number
+    private int    column;  // 1 based column, in bytes
+    private String message;
+
+    public Diagnostic(int line, int column, String message) {
+        this.line    = line;
+        this.column  = column;
+        this.message = message;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String toString() {
+        return message + " on line " + line + ", column " + column;
+    }
+}
@@ -4,21 +4,48 @@
  * ExpressionRecord.java
  *
  * Simple way of storing variable type and location
+ * location is the virtual register holding the value, see IrProgram
+ * a value known while compiling is kept as well, for constant folding
  */
 
 public class ExpressionRecord {
-    private char   type;
-    private int    location;
-    private String strLocation;
-
-    private static int numberOfLabelsMade = 0; // keep track of the number of labels created so far
+    private char     type;
+    private int      location;
+    private String   strLocation;
+    private Variable variable; // variable the value was just read from, if any
+    private boolean  isConstant; // true when the value is known while compiling
+    private int      constant;
 
     public void setType(char type) {
         this.type = type;
     }
 
     public void setLocation(int location) {
-        this.location = location;
+        this.location   = location;
+        this.variable   = null;
+        this.isConstant = false;
+    }
+
+    // call after setLocation(), which forgets the constant
+    public void setConstant(int constant) {
+        this.isConstant = true;
+        this.constant   = constant;
+    }
+
+    public boolean isConstant() {
+        return isConstant;
+    }
+
+    public int getConstant() {
+        return constant;
+    }
+
+    public void setVariable(Variable variable) {
+        this.variable = variable;
+    }
+
+    public Variable getVariable() {
+        return variable;
     }
 
     public void setLocation(String strLocation) {
@@ -37,8 +64,4 @@ public class ExpressionRecord {
         return location;
     }
 
-    public static String generateLabel() {
-        return "label" + numberOfLabelsMade++;
-    }
-
 }
@@ -0,0 +1,341 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * Instruction.java
+ *
+ * One three-address instruction of the intermediate representation.
+ * Values live in numbered virtual registers, each defined once; declared
+ * variables are only read and written by LOAD, STORE and READ. The last
+ * instruction of every basic block is a JUMP, BRANCH or EXIT.
+ */
+
+public class Instruction {
+    // opcodes, the value of op
+    public static final int CONST         = 0;  // dest = value
+    public static final int LOAD          = 1;  // dest = variable
+    public static final int STORE         = 2;  // variable = left
+    public static final int READ          = 3;  // variable = integer read from the console
+    public static final int ADD           = 4;  // dest = left + right
+    public static final int SUB           = 5;  // dest = left - right
+    public static final int MUL           = 6;  // dest = left * right
+    public static final int DIV           = 7;  // dest = left / right, truncated
+    public static final int REM           = 8;  // dest = left rem right, sign of left
+    public static final int AND           = 9;  // dest = left and right
+    public static final int OR            = 10; // dest = left or right
+    public static final int LESS          = 11; // dest = left < right, as 0 or 1
+    public static final int GREATER       = 12; // dest = left > right
+    public static final int EQUAL         = 13; // dest = left = right
+    public static final int NOT_EQUAL     = 14; // dest = left != right
+    public static final int NOT           = 15; // dest = not left, logical for 'l', bitwise for 'i'
+    public static final int STRING        = 16; // declares string constant label with text
+    public static final int WRITE_INT     = 17; // prints left as a number
+    public static final int WRITE_STRING  = 18; // prints string constant label
+    public static final int WRITE_NEWLINE = 19; // prints "\n"
+    public static final int JUMP          = 20; // continues at target
+    public static final int BRANCH        = 21; // continues at next if left != 0, else at target;
+                                                // with a compare op, if left compare right holds
+    public static final int EXIT          = 22; // ends the program
+    public static final int COPY          = 23; // dest = left
+    public static final int SHIFT_LEFT    = 24; // dest = left shifted left by value bits
+    public static final int SHIFT_RIGHT   = 25; // dest = left shifted right by value bits, copying the sign
+    public static final int SHIFT_RIGHT_LOGICAL = 26; // the same shifting in 0s
+    public static final int MUL_HIGH      = 27; // dest = upper 32 bits of the 64 bit left * right
+
+    public static final int NONE = -1; // no virtual register
+
+    private int        op;
+    private int        dest;      // virtual register written, NONE if there is none
+    private int        left;      // first virtual register read
+    private int        right;     // second virtual register read
+    private char       type;      // 'i', 'l' or 's', type of dest or of left when there is no dest
+    private int        value;     // CONST, number of bits to shift by
+    private String     text;      // CONST as spelled in the source, STRING contents
+    private String     label;     // STRING, WRITE_STRING
+    private Variable   variable;  // LOAD, STORE, READ
+    private int        compare;   // BRANCH on LESS to NOT_EQUAL of left and right, else NONE
+    private BasicBlock target;    // JUMP, BRANCH when the condition does not hold
+    private BasicBlock next;      // BRANCH when the condition holds
+    private String     comment;   // printed above the code for this instruction
+    private boolean    wrapping;  // ADD or SUB made by the Optimizer, wraps around instead of trapping
+
+    public Instruction(int op, int dest, int left, int right, char type) {
+        this.op    = op;
+        this.dest  = dest;
+        this.left  = left;
+        this.right = right;
+        this.type  = type;
+        this.compare = NONE;
+    }
+
+    public static Instruction constant(int dest, char type, int value, String text) {
+        Instruction i = new Instruction(CONST, dest, NONE, NONE, type);
+        i.value = value;
+        i.text  = text;
+        return i;
+    }
+
+    public static Instruction load(int dest, Variable variable) {
+        Instruction i = new Instruction(LOAD, dest, NONE, NONE, variable.getType());
+        i.variable = variable;
+        return i;
+    }
+
+    public static Instruction store(Variable variable, int source) {
+        Instruction i = new Instruction(STORE, NONE, source, NONE, variable.getType());
+        i.variable = variable;
+        return i;
+    }
+
+    public static Instruction read(Variable variable) {
+        Instruction i = new Instruction(READ, NONE, NONE, NONE, variable.getType());
+        i.variable = variable;
+        return i;
+    }
+
+    public static Instruction string(String label, String text) {
+        Instruction i = new Instruction(STRING, NONE, NONE, NONE, 's');
+        i.label = label;
+        i.text  = text;
+        return i;
+    }
+
+    public static Instruction write(int source, char type) {
+        return new Instruction(WRITE_INT, NONE, source, NONE, type);
+    }
+
+    public static Instruction writeNewline() {
+        return new Instruction(WRITE_NEWLINE, NONE, NONE, NONE, 's');
+    }
+
+    public static Instruction writeString(String label) {
+        Instruction i = new Instruction(WRITE_STRING, NONE, NONE, NONE, 's');
+        i.label = label;
+        return i;
+    }
+
+    public static Instruction copy(int dest, int source, char type) {
+        return new Instruction(COPY, dest, source, NONE, type);
+    }
+
+    // dest = source shifted by amount bits, op is SHIFT_LEFT, SHIFT_RIGHT
+    // or SHIFT_RIGHT_LOGICAL
+    public static Instruction shift(int op, int dest, int source, int amount) {
+        Instruction i = new Instruction(op, dest, source, NONE, 'i');
+        i.value = amount;
+        return i;
+    }
+
+    public static Instruction jump(BasicBlock target) {
+        Instruction i = new Instruction(JUMP, NONE, NONE, NONE, ' ');
+        i.target = target;
+        return i;
+    }
+
+    // continues at ifTrue when condition is not 0, at ifFalse otherwise
+    public static Instruction branch(int condition, BasicBlock ifTrue, BasicBlock ifFalse) {
+        Instruction i = new Instruction(BRANCH, NONE, condition, NONE, 'l');
+        i.next   = ifTrue;
+        i.target = ifFalse;
+        return i;
+    }
+
+    // sets the comment and returns this, for chaining
+    public Instruction comment(String comment) {
+        this.comment = comment;
+        return this;
+    }
+
+    // makes an ADD or SUB wrap around on overflow like MUL does, rather than
+    // trap like the + and - of the source; for the arithmetic the Optimizer
+    // puts in place of a multiplication or division. Returns this
+    public Instruction wrapping() {
+        this.wrapping = true;
+        return this;
+    }
+
+    public boolean isWrapping() {
+        return wrapping;
+    }
+
+    // a new instruction doing the same as this one
+    public Instruction duplicate() {
+        Instruction i = new Instruction(op, dest, left, right, type);
+        i.value    = value;
+        i.text     = text;
+        i.label    = label;
+        i.variable = variable;
+        i.compare  = compare;
+        i.target   = target;
+        i.next     = next;
+        i.comment  = comment;
+        i.wrapping = wrapping;
+        return i;
+    }
+
+    public boolean isTerminator() {
+        return op == JUMP || op == BRANCH || op == EXIT;
+    }
+
+    // true for the binary operators ADD to NOT_EQUAL
+    public boolean isBinary() {
+        return op >= ADD && op <= NOT_EQUAL;
+    }
+
+    // true when evaluate() can compute op with right as its second operand,
+    // so everything but division by zero
+    public static boolean canEvaluate(int op, int right) {
+        return (op != DIV && op != REM) || right != 0;
+    }
+
+    // value of dest for a NOT or binary op with constant operands, the
+    // same as the code CodeGenerator makes for it would compute
+    public static int evaluate(int op, char type, int left, int right) {
+        switch (op) {
+            case ADD:       return left + right;
+            case SUB:       return left - right;
+            case MUL:       return left * right;
+            case DIV:       return left / right;
+            case REM:       return left % right;
+            case AND:       return left & right;
+            case OR:        return left | right;
+            case LESS:      return (left < right) ? 1 : 0;
+            case GREATER:   return (left > right) ? 1 : 0;
+            case EQUAL:     return (left == right) ? 1 : 0;
+            case NOT_EQUAL: return (left != right) ? 1 : 0;
+            case NOT:       return (type == 'l') ? left ^ 1 : ~left;
+        }
+        throw new IllegalArgumentException("Cannot evaluate " + NAMES[op]);
+    }
+
+    // true when the instruction does nothing but define dest, so it can
+    // go once dest is no longer needed
+    public boolean isPure() {
+        return op == CONST || op == COPY || op == LOAD || op == NOT || isBinary()
+            || (op >= SHIFT_LEFT && op <= MUL_HIGH);
+    }
+
+    public int getOp() {
+        return op;
+    }
+
+    public void setOp(int op) {
+        this.op = op;
+    }
+
+    public int getDest() {
+        return dest;
+    }
+
+    public void setDest(int dest) {
+        this.dest = dest;
+    }
+
+    public int getLeft() {
+        return left;
+    }
+
+    public void setLeft(int left) {
+        this.left = left;
+    }
+
+    public int getRight() {
+        return right;
+    }
+
+    public void setRight(int right) {
+        this.right = right;
+    }
+
+    public char getType() {
+        return type;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public Variable getVariable() {
+        return variable;
+    }
+
+    public int getCompare() {
+        return compare;
+    }
+
+    // makes a BRANCH test left compare right, a relational opcode
+    public void setCompare(int compare, int left, int right) {
+        this.compare = compare;
+        this.left    = left;
+        this.right   = right;
+    }
+
+    // swaps where a BRANCH goes, so it branches on the opposite condition
+    public void invert() {
+        BasicBlock ifTrue = next;
+        next   = target;
+        target = ifTrue;
+    }
+
+    public BasicBlock getTarget() {
+        return target;
+    }
+
+    public BasicBlock getNext() {
+        return next;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        if (dest != NONE) {
+            result.append('v').append(dest).append(" = ");
+        }
+        result.append(NAMES[op]);
+        if (wrapping) {
+            result.append('u');
+        }
+        if (compare != NONE) {
+            result.append('_').append(NAMES[compare]);
+        }
+        if (op == CONST || (op >= SHIFT_LEFT && op <= SHIFT_RIGHT_LOGICAL)) {
+            result.append(' ').append(value);
+        }
+        if (variable != null) {
+            result.append(' ').append(variable.getLexeme());
+        }
+        if (left != NONE) {
+            result.append(" v").append(left);
+        }
+        if (right != NONE) {
+            result.append(" v").append(right);
+        }
+        if (label != null) {
+            result.append(' ').append(label);
+        }
+        if (next != null) {
+            result.append(' ').append(next.getName());
+        }
+        if (target != null) {
+            result.append(' ').append(target.getName());
+        }
+        return result.toString();
+    }
+
+    private static final String[] NAMES = {
+        "const", "load", "store", "read", "add", "sub", "mul", "div", "rem",
+        "and", "or", "lt", "gt", "eq", "ne", "not", "string", "write_int",
+        "write_string", "write_newline", "jump", "branch", "exit", "copy", "shl", "sra", "srl",
+        "mulh"
+    };
+}
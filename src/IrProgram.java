@@ -0,0 +1,111 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * IrProgram.java
+ *
+ * Intermediate representation of a whole program: basic blocks in the
+ * order their code is laid out, and the type of every virtual register.
+ * RDParser builds it, CodeGenerator lowers it to MIPS.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays; // for growing the register types
+
+public class IrProgram {
+    // virtual register read by expressions that never got a value,
+    // lowered like any other register
+    public static final int UNDEFINED = 0;
+
+    private ArrayList<BasicBlock> blocks; // layout order, the first one is the entry
+    private BasicBlock current;           // block instructions are added to
+    private char[]     valueTypes;        // type of each virtual register
+    private int        valueCount;
+    private int        blockCount;
+    private int        labelCount;        // labels made by newLabel() so far
+
+    public IrProgram() {
+        this.blocks     = new ArrayList<BasicBlock>();
+        this.valueTypes = new char[64];
+        this.valueCount = 0;
+        this.blockCount = 0;
+        this.labelCount = 0;
+
+        newValue('i'); // UNDEFINED
+        this.current = newBlock(null);
+        this.blocks.add(current);
+    }
+
+    // a new virtual register of the given type
+    public int newValue(char type) {
+        if (valueCount == valueTypes.length) {
+            valueTypes = Arrays.copyOf(valueTypes, valueCount * 2);
+        }
+        valueTypes[valueCount] = type;
+        return valueCount++;
+    }
+
+    public char getType(int value) {
+        return valueTypes[value];
+    }
+
+    public int getValueCount() {
+        return valueCount;
+    }
+
+    // a new block that is not laid out yet, see startBlock()
+    public BasicBlock newBlock(String label) {
+        return new BasicBlock(blockCount++, label);
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    // a new assembly label, numbered in the order they are made so that
+    // compiling the same program always gives the same labels
+    public String newLabel() {
+        return "label" + labelCount++;
+    }
+
+    // lays out block after the current one and makes it current, falling
+    // into it from the current block unless that one already ends in a jump
+    public void startBlock(BasicBlock block) {
+        if (current.getTerminator() == null) {
+            current.add(Instruction.jump(block));
+        }
+        blocks.add(block);
+        current = block;
+    }
+
+    // lays out block right after previous, for blocks made once the
+    // program is finished
+    public void insertAfter(BasicBlock previous, BasicBlock block) {
+        blocks.add(blocks.indexOf(previous) + 1, block);
+    }
+
+    // adds an instruction to the current block
+    public Instruction add(Instruction instruction) {
+        current.add(instruction);
+        return instruction;
+    }
+
+    // ends the program after the current block
+    public void finish() {
+        if (current.getTerminator() == null) {
+            current.add(new Instruction(Instruction.EXIT, Instruction.NONE, Instruction.NONE,
+                Instruction.NONE, ' '));
+        }
+    }
+
+    public ArrayList<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (BasicBlock b : blocks) {
+            result.append(b);
+        }
+        return result.toString();
+    }
+}
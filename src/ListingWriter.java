@@ -0,0 +1,150 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * ListingWriter.java
+ *
+ * Writes the listing file on a background thread: every source line with
+ * its line number, followed by the diagnostics. The Scanner only hands
+ * over source bytes, the lines are found and numbered here
+ */
+
+import java.io.FileOutputStream;     // listing file
+import java.io.IOException;
+import java.nio.ByteBuffer;          // chunks of source bytes
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class ListingWriter implements Runnable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+    private static final ByteBuffer END = ByteBuffer.allocate(0); // marks the end of the source
+
+    private BlockingQueue<ByteBuffer> chunks; // source bytes waiting to be written
+    private FileOutputStream out;
+    private byte[] buffer;                    // bytes not yet written to out
+    private int count;                        // number of bytes in buffer
+    private Thread thread;
+    private List<Diagnostic> diagnostics;     // written after the last line
+    private IOException failure;              // first error seen by the writer thread
+
+    // state of the line being written, carried between chunks
+    private int lineNumber;
+    private boolean atLineStart;
+    private boolean afterReturn;              // last byte was '\r', a following '\n' belongs to it
+
+    public ListingWriter(Path path) throws IOException {
+        this.chunks      = new LinkedBlockingQueue<ByteBuffer>();
+        this.out         = new FileOutputStream(path.toFile());
+        this.buffer      = new byte[BUFFER_SIZE];
+        this.count       = 0;
+        this.lineNumber  = 0;
+        this.atLineStart = true;
+        this.afterReturn = false;
+        this.thread      = new Thread(this, "listing-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // queues source bytes from position to limit, the buffer must not change afterwards
+    public void append(ByteBuffer chunk) {
+        chunks.add(chunk);
+    }
+
+    // queues the diagnostics and waits until the listing file is complete
+    public void close(List<Diagnostic> diagnostics) throws IOException {
+        this.diagnostics = diagnostics;
+        chunks.add(END);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing the listing file");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public void run() {
+        try {
+            ByteBuffer chunk = chunks.take();
+            while (chunk != END) {
+                writeChunk(chunk);
+                chunk = chunks.take();
+            }
+
+            if (!atLineStart) {
+                write(LINE_SEPARATOR);
+            }
+            for (Diagnostic d : diagnostics) {
+                write(d.toString().getBytes());
+                write((byte) '\n');
+            }
+            write(LINE_SEPARATOR);
+            out.write(buffer, 0, count);
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new IOException("listing writer interrupted");
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    // copies the chunk, numbering each line and folding case like the Scanner
+    private void writeChunk(ByteBuffer chunk) throws IOException {
+        for (int i = chunk.position(); i < chunk.limit(); i++) {
+            byte b = chunk.get(i);
+            if (afterReturn) {
+                afterReturn = false;
+                if (b == '\n') {
+                    continue;
+                }
+            }
+
+            if (b == '\n' || b == '\r') {
+                if (atLineStart) {
+                    writeLineNumber();
+                }
+                write(LINE_SEPARATOR);
+                atLineStart = true;
+                afterReturn = (b == '\r');
+                continue;
+            }
+
+            if (atLineStart) {
+                writeLineNumber();
+                atLineStart = false;
+            }
+            write((b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b);
+        }
+    }
+
+    private void writeLineNumber() throws IOException {
+        lineNumber++;
+        write(Integer.toString(lineNumber).getBytes());
+        write((byte) ' ');
+    }
+
+    private void write(byte b) throws IOException {
+        if (count == buffer.length) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        buffer[count++] = b;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            write(b);
+        }
+    }
+}
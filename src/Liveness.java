@@ -0,0 +1,80 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * Liveness.java
+ *
+ * Which virtual registers of an IrProgram are live, that is may still be
+ * read before being written again, at the start and end of every basic
+ * block. Solved backwards over the control flow graph until nothing
+ * changes.
+ */
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+public class Liveness {
+    private ArrayList<BasicBlock> blocks;
+    private BitSet[] liveIn;  // by position of the block in layout order
+    private BitSet[] liveOut;
+
+    public Liveness(IrProgram program) {
+        this.blocks = program.getBlocks();
+
+        int count = blocks.size();
+        int[] position = new int[program.getBlockCount()];
+        BitSet[] used    = new BitSet[count]; // read before written in the block
+        BitSet[] defined = new BitSet[count]; // written in the block
+        liveIn  = new BitSet[count];
+        liveOut = new BitSet[count];
+
+        for (int b = 0; b < count; b++) {
+            position[blocks.get(b).getNumber()] = b;
+            used[b]    = new BitSet();
+            defined[b] = new BitSet();
+            liveIn[b]  = new BitSet();
+            liveOut[b] = new BitSet();
+            for (Instruction i : blocks.get(b).getInstructions()) {
+                use(i.getLeft(), used[b], defined[b]);
+                use(i.getRight(), used[b], defined[b]);
+                if (i.getDest() != Instruction.NONE) {
+                    defined[b].set(i.getDest());
+                }
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = count - 1; b >= 0; b--) {
+                BitSet out = new BitSet();
+                for (BasicBlock s : blocks.get(b).getSuccessors()) {
+                    out.or(liveIn[position[s.getNumber()]]);
+                }
+                BitSet in = (BitSet) out.clone();
+                in.andNot(defined[b]);
+                in.or(used[b]);
+                if (!in.equals(liveIn[b]) || !out.equals(liveOut[b])) {
+                    liveIn[b]  = in;
+                    liveOut[b] = out;
+                    changed    = true;
+                }
+            }
+        }
+    }
+
+    private static void use(int value, BitSet used, BitSet defined) {
+        if (value != Instruction.NONE && !defined.get(value)) {
+            used.set(value);
+        }
+    }
+
+    // registers live on entry to the block at position b in layout order
+    public BitSet getLiveIn(int b) {
+        return liveIn[b];
+    }
+
+    // registers live on leaving the block at position b in layout order
+    public BitSet getLiveOut(int b) {
+        return liveOut[b];
+    }
+}
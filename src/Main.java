@@ -3,39 +3,252 @@
  * CS 4110 - Compiler Design
  * Main.java
  *
- * Main driver for RDParser
+ * Main driver for RDParser, also run by CompileClient when there is no
+ * CompileServer to compile for it. In batch mode every source file is
+ * compiled by its own Scanner, RDParser and CodeGenerator on a pool of
+ * threads; each writes only its own files and buffers its messages,
+ * which are printed in the order the files were given. In watch mode a
+ * Watcher compiles the files of a directory again as they change.
  */
 
-import java.io.BufferedReader;  // for Scanner constructor
-import java.io.FileReader;      // BufferedReader's constructor takes in a FileReader object
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream; // messages of one compilation in a batch
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;     // the Scanner maps the source file
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Main {
     public static void main(String[] args) {
         try {
-            String path    = args[0];
-            Scanner scan   = new Scanner(new BufferedReader(new FileReader(path)));
+            Options options = Options.parse(args);
+            Reader input = options.isStandardInput()
+                ? new InputStreamReader(System.in, StandardCharsets.UTF_8) : null;
+            run(options, input);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    // does what options ask for, reading a single source from input unless
+    // it is null
+    static void run(Options options, Reader input) throws IOException {
+        if (options.isServer()) {
+            new CompileServer(options.getServerPort()).run();
+        } else if (options.isBatch()) {
+            compileAll(options);
+        } else if (options.isWatch()) {
+            new Watcher(options).run();
+        } else if (!options.isStatisticsOnly()) {
+            compile(options, options.getSourcePath(), input, options.getOutputPath(),
+                options.getListingPath(), System.out, null, null);
+        }
+        if (options.isCacheStatistics()) {
+            printStatistics(options, System.out);
+        }
+    }
 
-            if (args.length > 1) {
-                if (Boolean.parseBoolean(args[1]) == true || Integer.parseInt(args[1]) == 1) {
-                    System.out.println("Tokens: ");
-                    scan.printAllTokens();
+    // prints the hits and misses of the cache of options
+    static void printStatistics(Options options, PrintStream out) throws IOException {
+        out.println(new CompilationCache(Paths.get(options.getCacheDirectory()), options.getCacheSize())
+            .getStatistics());
+    }
+
+    // compiles every source file of options on options.getJobs() threads,
+    // file.c to file.s, then prints what each compilation printed
+    private static void compileAll(final Options options) {
+        ArrayList<String> sources = options.getSourcePaths();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(options.getJobs(), sources.size()));
+        ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+        final boolean[] compiled = new boolean[sources.size()]; // seen after each result.get()
+        for (int n = 0; n < sources.size(); n++) {
+            final String source = sources.get(n);
+            final int    index  = n;
+            results.add(pool.submit(new Callable<String>() {
+                public String call() {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    PrintStream out = new PrintStream(buffer);
+                    out.println("source: " + source);
+                    String listing = (options.getListingPath() == null)
+                        ? null : Options.batchPath(source, ".listing.txt");
+                    try {
+                        compiled[index] = compile(options, source, null, Options.batchPath(source, ".s"),
+                            listing, out, null, null);
+                    } catch (IOException e) {
+                        out.println(e.getMessage());
+                    }
+                    out.close();
+                    return buffer.toString();
                 }
+            }));
+        }
+        pool.shutdown();
+
+        int succeeded = 0;
+        for (int n = 0; n < results.size(); n++) {
+            try {
+                System.out.print(results.get(n).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                System.out.println("source: " + sources.get(n));
+                System.out.println("compilation stopped: " + e.getCause());
+            }
+            if (compiled[n]) {
+                succeeded++;
+            }
+        }
+        System.out.println("Compiled " + succeeded + " of " + sources.size() + " files without errors");
+    }
+
+    // compiles sourcePath, or what input reads unless it is null, writing
+    // the code to outputPath and to assembly unless they are null, the
+    // listing to listingPath unless it is null, and messages to out;
+    // sourcePath is scanned against tokens, the last version of it, unless
+    // tokens is null; returns false when there were errors
+    static boolean compile(Options options, String sourcePath, Reader input, String outputPath,
+            String listingPath, PrintStream out, Writer assembly, TokenCache tokens) throws IOException {
+        // the cache keeps neither the verbose output nor listings
+        if (options.getCacheDirectory() == null || options.isVerbose() || listingPath != null) {
+            return compileSource(options, sourcePath, input, outputPath, listingPath, out, assembly, tokens);
+        }
+
+        byte[] source;
+        if (input != null) {
+            StringBuilder text = new StringBuilder();
+            char[] chunk = new char[1 << 12];
+            int n;
+            while ((n = input.read(chunk)) != -1) {
+                text.append(chunk, 0, n);
+            }
+            source = text.toString().getBytes(StandardCharsets.UTF_8);
+            input  = new StringReader(text.toString());
+        } else {
+            source = Files.readAllBytes(Paths.get(sourcePath));
+        }
+
+        CompilationCache cache = new CompilationCache(Paths.get(options.getCacheDirectory()),
+            options.getCacheSize());
+        String key = CompilationCache.key(source, options);
+        CompilationCache.Entry entry = cache.get(key);
+        if (entry == null) {
+            ByteArrayOutputStream messages = new ByteArrayOutputStream();
+            PrintStream printed = new PrintStream(messages);
+            StringWriter code   = new StringWriter();
+            boolean compiled = compileSource(options, sourcePath, input, null, null, printed, code, tokens);
+            printed.close();
+            entry = new CompilationCache.Entry(compiled, messages.toByteArray(),
+                (code.getBuffer().length() == 0) ? null : code.toString().getBytes(StandardCharsets.UTF_8));
+            cache.put(key, entry);
+        }
+
+        out.write(entry.getMessages());
+        out.flush();
+        if (entry.getCode() != null) {
+            // copied, a hard link would be truncated with the output file
+            if (outputPath != null) {
+                Files.write(Paths.get(outputPath), entry.getCode());
+            }
+            if (assembly != null) {
+                assembly.write(new String(entry.getCode(), StandardCharsets.UTF_8));
             }
+        }
+        return entry.isCompiled();
+    }
+
+    // compile() without the cache
+    private static boolean compileSource(Options options, String sourcePath, Reader input, String outputPath,
+            String listingPath, PrintStream out, Writer assembly, TokenCache tokens) throws IOException {
+        boolean verbose = options.isVerbose();
+        Path listing    = (listingPath == null) ? null : Paths.get(listingPath);
+
+        // tokens are only materialized up front when they need to be printed,
+        // when they are scanned in parallel or kept for the next version
+        Scanner scan;
+        if (input != null) {
+            scan = new Scanner(new BufferedReader(input), !verbose, listing);
+        } else if (tokens != null) {
+            scan = new Scanner(Paths.get(sourcePath), listing, tokens);
+        } else if (options.getLexThreads() > 1) {
+            scan = new Scanner(Paths.get(sourcePath), options.getLexThreads(), listing);
+        } else {
+            scan = new Scanner(Paths.get(sourcePath), !verbose, listing);
+        }
+
+        if (verbose) {
+            out.println("Tokens: ");
+            scan.printAllTokens(out);
+        }
+
+        // derivation and trace are only recorded in verbose mode
+        DerivationRecorder derivation = null;
+        ParseTracer tracer            = null;
+        ParseListener listener        = ParseListener.NONE;
+        if (verbose) {
+            derivation = new DerivationRecorder();
+            tracer     = new ParseTracer();
+            listener   = ParseListener.both(derivation, tracer);
+        }
 
-            SymbolTable st = new SymbolTable();
-            RDParser parse = new RDParser(scan, st, true);
+        SymbolTable st = new SymbolTable();
+        RDParser parse = new RDParser(scan, st, listener, options.getMaxErrors(),
+            options.getOptimization(), null);
 
-            if (args.length > 1) {
-                if (Boolean.parseBoolean(args[1]) == true || Integer.parseInt(args[1]) == 1) {
-                    System.out.println("Symbol Table: ");
-                    System.out.println(st);
-                    System.out.println("Parser -- Leftmost Derivation: ");
-                    System.out.println(parse.getDerivation());  
+        scan.close();
+        CodeGenerator codeGen = parse.getCodeGenerator();
+        if (assembly != null && codeGen.hasCode()) {
+            codeGen.writeTo(assembly);
+        }
+
+        for (Diagnostic d : parse.getErrors()) {
+            out.println(d);
+        }
+        for (Diagnostic d : scan.getErrors()) {
+            out.println(d);
+        }
+
+        if (options.getOptimization() > 0) {
+            out.println("Peephole: removed " + codeGen.getRemovedCount() + " instructions");
+        }
+
+        if (verbose) {
+            out.println("Symbol Table: ");
+            out.println(st);
+            out.println("Parser -- Leftmost Derivation: ");
+            out.println(derivation);
+            out.println("Parser -- Trace: ");
+            out.println(tracer);
+        }
+
+        // written here rather than by the parser, so a failed write is an error
+        if (outputPath != null && codeGen.hasCode()) {
+            try {
+                Writer file = Files.newBufferedWriter(Paths.get(outputPath), StandardCharsets.UTF_8);
+                try {
+                    codeGen.writeTo(file);
+                } finally {
+                    file.close();
                 }
+            } catch (IOException e) {
+                throw new IOException("Cannot write the code to " + outputPath + ": " + e, e);
             }
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
         }
+        return parse.getErrors().isEmpty() && scan.getErrors().isEmpty();
     }
 }
@@ -0,0 +1,208 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * MipsInstruction.java
+ *
+ * One line of the generated assembly: an instruction with its operands,
+ * a label, a comment, or text such as directives that is written as is.
+ * CodeGenerator collects these so the Peephole pass can look at opcodes
+ * and operands instead of strings.
+ */
+
+public class MipsInstruction {
+    // kinds of line
+    public static final int INSTRUCTION = 0; // op and operands
+    public static final int LABEL       = 1; // text is the label name
+    public static final int COMMENT     = 2; // text follows "# "
+    public static final int TEXT        = 3; // text is the whole line
+
+    private int      kind;
+    private String   op;
+    private String[] operands;
+    private String   text;
+    private boolean  spaced; // followed by an empty line
+
+    private MipsInstruction(int kind, String op, String[] operands, String text) {
+        this.kind     = kind;
+        this.op       = op;
+        this.operands = operands;
+        this.text     = text;
+    }
+
+    public static MipsInstruction instruction(String op, String... operands) {
+        return new MipsInstruction(INSTRUCTION, op, operands, null);
+    }
+
+    public static MipsInstruction label(String name) {
+        return new MipsInstruction(LABEL, null, null, name);
+    }
+
+    public static MipsInstruction comment(String comment) {
+        return new MipsInstruction(COMMENT, null, null, comment);
+    }
+
+    public static MipsInstruction text(String line) {
+        return new MipsInstruction(TEXT, null, null, line);
+    }
+
+    // puts an empty line after this one and returns it, for chaining
+    public MipsInstruction spaced() {
+        this.spaced = true;
+        return this;
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    // true for an instruction with opcode op
+    public boolean is(String op) {
+        return kind == INSTRUCTION && this.op.equals(op);
+    }
+
+    // true for the text line that is exactly directive, ignoring spaces around it
+    public boolean isDirective(String directive) {
+        return kind == TEXT && text.trim().equals(directive);
+    }
+
+    public String getOp() {
+        return op;
+    }
+
+    public int getOperandCount() {
+        return (operands == null) ? 0 : operands.length;
+    }
+
+    public String getOperand(int n) {
+        return operands[n];
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    // true for j, b and the conditional branches
+    public boolean isJump() {
+        return kind == INSTRUCTION && (op.equals("j") || op.equals("b") || op.equals("beq")
+            || op.equals("bne") || op.equals("blt") || op.equals("ble") || op.equals("bgt")
+            || op.equals("bge"));
+    }
+
+    // true when control never goes on to the next line
+    public boolean isUnconditionalJump() {
+        return is("j") || is("b");
+    }
+
+    // label a jump goes to, its last operand
+    public String getTarget() {
+        return operands[operands.length - 1];
+    }
+
+    // true when the only effect is writing the first operand, computed
+    // from the others
+    public boolean isComputation() {
+        if (kind != INSTRUCTION) {
+            return false;
+        }
+        for (String computation : COMPUTATIONS) {
+            if (computation.equals(op)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // registers written, as bits, see bit()
+    public long getDefined() {
+        if (isComputation()) {
+            return bit(operands[0]);
+        } else if ((is("div") || is("mult")) && operands.length == 2) {
+            return bit("hi") | bit("lo");
+        } else if (is("syscall")) {
+            return bit("$v0");
+        }
+        return 0;
+    }
+
+    // registers read, as bits, see bit(); an address reads its base register
+    public long getUsed() {
+        long used = 0;
+        if (kind != INSTRUCTION) {
+            return used;
+        } else if (is("mflo")) {
+            return bit("lo");
+        } else if (is("mfhi")) {
+            return bit("hi");
+        } else if (is("syscall")) {
+            return bit("$v0") | bit("$a0");
+        }
+        int first = isComputation() ? 1 : 0;
+        int last  = isJump() ? operands.length - 1 : operands.length;
+        for (int n = first; n < last; n++) {
+            used |= bit(operands[n]);
+        }
+        return used;
+    }
+
+    // the same instruction writing register instead of its first operand
+    public MipsInstruction withDestination(String register) {
+        String[] changed = operands.clone();
+        changed[0] = register;
+        MipsInstruction result = instruction(op, changed);
+        result.spaced = spaced;
+        return result;
+    }
+
+    // bit standing for the register in operand, which may be an address
+    // like -4($fp); 0 for $zero and anything that is not a register
+    public static long bit(String operand) {
+        int open = operand.indexOf('(');
+        if (open >= 0) {
+            operand = operand.substring(open + 1, operand.length() - 1);
+        }
+        for (int n = 1; n < REGISTER_NAMES.length; n++) {
+            if (REGISTER_NAMES[n].equals(operand)) {
+                return 1L << n;
+            }
+        }
+        return 0;
+    }
+
+    private static final String[] REGISTER_NAMES = {
+        "$zero", "$at", "$v0", "$v1", "$a0", "$a1", "$a2", "$a3",
+        "$t0", "$t1", "$t2", "$t3", "$t4", "$t5", "$t6", "$t7",
+        "$s0", "$s1", "$s2", "$s3", "$s4", "$s5", "$s6", "$s7",
+        "$t8", "$t9", "$k0", "$k1", "$gp", "$sp", "$fp", "$ra", "hi", "lo"
+    };
+
+    // opcodes that only write their first operand
+    private static final String[] COMPUTATIONS = {
+        "li", "la", "lw", "move", "add", "addi", "addiu", "addu", "sub", "subu", "mul",
+        "and", "andi", "or", "ori", "xor", "xori", "nor", "not", "neg", "slt", "slti",
+        "sltu", "sltiu", "sgt", "sge", "sle", "seq", "sne", "sll", "srl", "sra", "sllv",
+        "srlv", "srav", "mflo", "mfhi"
+    };
+
+    public String toString() {
+        String line;
+        switch (kind) {
+            case INSTRUCTION:
+                StringBuilder result = new StringBuilder(op);
+                for (String operand : operands) {
+                    result.append(' ').append(operand);
+                }
+                line = result.toString();
+                break;
+            case LABEL:
+                line = text + ": ";
+                break;
+            case COMMENT:
+                line = "# " + text;
+                break;
+            default:
+                line = text;
+                break;
+        }
+        return spaced ? line + "\n" : line;
+    }
+}
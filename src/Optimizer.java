@@ -0,0 +1,742 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * Optimizer.java
+ *
+ * Rewrites an IrProgram before it is lowered with registers. While loops
+ * are turned to test their condition at the bottom, and code computing
+ * the same value on every pass is moved out in front of them. Conditions
+ * joined with and / or are split into branches so the right operand is
+ * only computed when it decides the outcome. Multiplication and division
+ * by constants become shifts and adds. Values computed more than once
+ * are reused, see ValueNumbering. Declared variables become
+ * virtual registers of their own, assigned by COPY, so
+ * that the register allocator can keep them out of memory; the loads
+ * and stores the parser made are then folded into the instructions
+ * around them, and anything left unused is removed.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+
+public class Optimizer {
+    private IrProgram program;
+    private int[]     variableValue; // virtual register of each variable, by number, 0 if none yet
+    private int[]     uses;          // number of instructions reading each virtual register
+    private boolean[] isVariable;    // true for the registers standing for variables
+    private ArrayList<BasicBlock[]> loops; // preheader and exit block of each rotated loop
+
+    public Optimizer(IrProgram program) {
+        this.program       = program;
+        this.variableValue = new int[16];
+        this.loops         = new ArrayList<BasicBlock[]>();
+    }
+
+    // runs the passes for the given optimization level, 1 or more
+    public void optimize(int level) {
+        removeUnreachableBlocks();
+        rotateLoops();
+        shortCircuit();
+        promoteVariables();
+        countUses();
+        forwardLoads();
+        coalesceStores();
+        new ValueNumbering(program).run();
+        hoistInvariants();
+        reduceInductions();
+        countUses();
+        reduceStrength();
+        countUses();
+        fuseBranches();
+        removeDeadCode();
+    }
+
+    // drops the blocks control never gets to, such as the ones behind
+    // conditions RDParser found to be always true or always false
+    private void removeUnreachableBlocks() {
+        ArrayList<BasicBlock> blocks = program.getBlocks();
+        boolean[] reached = new boolean[program.getBlockCount()];
+        ArrayList<BasicBlock> work = new ArrayList<BasicBlock>();
+        reached[blocks.get(0).getNumber()] = true;
+        work.add(blocks.get(0));
+        while (!work.isEmpty()) {
+            for (BasicBlock s : work.remove(work.size() - 1).getSuccessors()) {
+                if (!reached[s.getNumber()]) {
+                    reached[s.getNumber()] = true;
+                    work.add(s);
+                }
+            }
+        }
+
+        Iterator<BasicBlock> it = blocks.iterator();
+        while (it.hasNext()) {
+            if (!reached[it.next().getNumber()]) {
+                it.remove();
+            }
+        }
+    }
+
+    // a while loop tests its condition at the top and jumps back to the
+    // test at the bottom, two branches on every pass. The bottom gets a
+    // copy of the test instead, branching back into the body while it
+    // holds, and the test at the top is left to skip the loop when it
+    // does not hold at all. A new empty block, the preheader, goes between
+    // that test and the body for hoistInvariants() to move code to
+    private void rotateLoops() {
+        ArrayList<BasicBlock> blocks = program.getBlocks();
+        for (int n = 0; n < blocks.size(); n++) {
+            BasicBlock latch = blocks.get(n);
+            Instruction jump = latch.getTerminator();
+            if (jump == null || jump.getOp() != Instruction.JUMP) {
+                continue;
+            }
+            // the shape RDParser lays out: test, body up to the latch, exit
+            BasicBlock header = jump.getTarget();
+            int h = blocks.indexOf(header);
+            Instruction test = header.getTerminator();
+            if (h > n || test.getOp() != Instruction.BRANCH || test.getNext() != blocks.get(h + 1)
+                    || n + 1 == blocks.size() || test.getTarget() != blocks.get(n + 1)) {
+                continue;
+            }
+
+            // the copy computes into temporaries of its own
+            ArrayList<Instruction> code = latch.getInstructions();
+            HashMap<Integer, Integer> renamed = new HashMap<Integer, Integer>();
+            code.remove(code.size() - 1);
+            for (Instruction i : header.getInstructions()) {
+                Instruction copy = i.duplicate();
+                if (renamed.containsKey(i.getLeft())) {
+                    copy.setLeft(renamed.get(i.getLeft()));
+                }
+                if (renamed.containsKey(i.getRight())) {
+                    copy.setRight(renamed.get(i.getRight()));
+                }
+                if (i.getDest() != Instruction.NONE) {
+                    copy.setDest(program.newValue(program.getType(i.getDest())));
+                    renamed.put(i.getDest(), copy.getDest());
+                }
+                code.add(copy);
+            }
+
+            BasicBlock preheader = program.newBlock(null);
+            preheader.add(Instruction.jump(test.getNext()));
+            program.insertAfter(header, preheader);
+            header.getInstructions().set(header.getInstructions().size() - 1,
+                Instruction.branch(test.getLeft(), preheader, test.getTarget()).comment(test.getComment()));
+            loops.add(new BasicBlock[] { preheader, test.getTarget() });
+            n++; // the latch moved down by the preheader
+        }
+    }
+
+    // a BRANCH on p and q branches on p first and only goes on to a new
+    // block computing q and branching on it when p is true, likewise for
+    // or when p is false; a BRANCH on a logical not branches the other
+    // way instead. Runs while every temporary is still written once and
+    // read once, so the instructions between the definitions of p and of
+    // the and are exactly the ones computing q
+    private void shortCircuit() {
+        ArrayList<BasicBlock> blocks = program.getBlocks();
+        for (int b = 0; b < blocks.size(); b++) { // blocks made here are visited too
+            BasicBlock block = blocks.get(b);
+            ArrayList<Instruction> code = block.getInstructions();
+            Instruction branch = block.getTerminator();
+            while (branch != null && branch.getOp() == Instruction.BRANCH) {
+                int end = code.size() - 1;
+                int at  = code.indexOf(definition(code, end, branch.getLeft()));
+                if (at < 0 || code.get(at).getType() != 'l') {
+                    break;
+                }
+                Instruction def = code.get(at);
+                if (def.getOp() == Instruction.NOT) {
+                    branch.invert();
+                    branch.setLeft(def.getLeft());
+                    code.remove(at);
+                    continue;
+                } else if (def.getOp() != Instruction.AND && def.getOp() != Instruction.OR) {
+                    break;
+                }
+                int first = code.indexOf(definition(code, at, def.getLeft()));
+                if (first < 0 || code.indexOf(definition(code, at, def.getRight())) <= first) {
+                    break;
+                }
+
+                BasicBlock right = program.newBlock(null);
+                for (Instruction i : code.subList(first + 1, at)) {
+                    right.add(i);
+                }
+                right.add(Instruction.branch(def.getRight(), branch.getNext(), branch.getTarget())
+                    .comment(def.getOp() == Instruction.AND ? "and" : "or"));
+                program.insertAfter(block, right);
+
+                code.subList(first + 1, code.size()).clear();
+                String comment = branch.getComment();
+                if (def.getOp() == Instruction.AND) {
+                    branch = Instruction.branch(def.getLeft(), right, branch.getTarget());
+                } else {
+                    branch = Instruction.branch(def.getLeft(), branch.getNext(), right);
+                }
+                code.add(branch.comment(comment));
+            }
+        }
+    }
+
+    // virtual register standing for variable v
+    private int valueOf(Variable v) {
+        int n = v.getNumber();
+        if (n >= variableValue.length) {
+            variableValue = Arrays.copyOf(variableValue, Math.max(n + 1, variableValue.length * 2));
+        }
+        if (variableValue[n] == 0) {
+            variableValue[n] = program.newValue(v.getType());
+        }
+        return variableValue[n];
+    }
+
+    // LOAD, STORE and READ of a variable become plain register writes
+    private void promoteVariables() {
+        for (BasicBlock b : program.getBlocks()) {
+            for (Instruction i : b.getInstructions()) {
+                switch (i.getOp()) {
+                    case Instruction.LOAD:
+                        i.setOp(Instruction.COPY);
+                        i.setLeft(valueOf(i.getVariable()));
+                        break;
+                    case Instruction.STORE:
+                        i.setOp(Instruction.COPY);
+                        i.setDest(valueOf(i.getVariable()));
+                        break;
+                    case Instruction.READ:
+                        i.setDest(valueOf(i.getVariable()));
+                        break;
+                }
+            }
+        }
+    }
+
+    private void countUses() {
+        uses       = new int[program.getValueCount()];
+        isVariable = new boolean[program.getValueCount()];
+        for (int value : variableValue) {
+            isVariable[value] = true;
+        }
+        isVariable[IrProgram.UNDEFINED] = false;
+        for (BasicBlock b : program.getBlocks()) {
+            for (Instruction i : b.getInstructions()) {
+                if (i.getLeft() != Instruction.NONE) {
+                    uses[i.getLeft()]++;
+                }
+                if (i.getRight() != Instruction.NONE) {
+                    uses[i.getRight()]++;
+                }
+            }
+        }
+    }
+
+    // reads of a register copied from a variable read the variable
+    // instead, as long as the variable has not changed in between
+    private void forwardLoads() {
+        for (BasicBlock b : program.getBlocks()) {
+            ArrayList<Instruction> code = b.getInstructions();
+            for (int n = 0; n < code.size(); n++) {
+                Instruction load = code.get(n);
+                if (load.getOp() != Instruction.COPY || !isVariable[load.getLeft()]
+                        || isVariable[load.getDest()]) {
+                    continue;
+                }
+                int copy     = load.getDest();
+                int variable = load.getLeft();
+                for (int m = n + 1; m < code.size() && uses[copy] > 0; m++) {
+                    Instruction i = code.get(m);
+                    if (i.getLeft() == copy) {
+                        i.setLeft(variable);
+                        uses[copy]--;
+                        uses[variable]++;
+                    }
+                    if (i.getRight() == copy) {
+                        i.setRight(variable);
+                        uses[copy]--;
+                        uses[variable]++;
+                    }
+                    if (i.getDest() == variable || i.getDest() == copy) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // a temporary that is only computed to be copied into a variable is
+    // computed into the variable directly
+    private void coalesceStores() {
+        for (BasicBlock b : program.getBlocks()) {
+            ArrayList<Instruction> code = b.getInstructions();
+            for (int n = code.size() - 1; n > 0; n--) {
+                Instruction store = code.get(n);
+                if (store.getOp() != Instruction.COPY || !isVariable[store.getDest()]
+                        || isVariable[store.getLeft()] || uses[store.getLeft()] != 1) {
+                    continue;
+                }
+                int temp     = store.getLeft();
+                int variable = store.getDest();
+                for (int m = n - 1; m >= 0; m--) {
+                    Instruction i = code.get(m);
+                    if (i.getDest() == temp) {
+                        i.setDest(variable);
+                        code.remove(n);
+                        uses[temp]--;
+                        break;
+                    }
+                    if (i.getDest() == variable || i.getLeft() == variable
+                            || i.getRight() == variable) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // moves instructions computing the same value on every pass through a
+    // rotated loop to its preheader: pure ones writing a temporary, with
+    // operands nothing in the loop writes. Inner loops go first, so code
+    // can move out of several loops. A division is only moved when its
+    // divisor is a constant other than 0, as the preheader runs even when
+    // the division in the loop would not
+    private void hoistInvariants() {
+        final ArrayList<BasicBlock> blocks = program.getBlocks();
+        Instruction[] constant = findConstants();
+        Collections.sort(loops, new Comparator<BasicBlock[]>() {
+            public int compare(BasicBlock[] a, BasicBlock[] b) {
+                return Integer.compare(blocks.indexOf(a[1]), blocks.indexOf(b[1]));
+            }
+        });
+        for (BasicBlock[] loop : loops) {
+            ArrayList<Instruction> preheader = loop[0].getInstructions();
+            int first = blocks.indexOf(loop[0]) + 1;
+            int last  = blocks.indexOf(loop[1]);
+            int[] written = new int[program.getValueCount()]; // times each register is written in the loop
+            for (int b = first; b < last; b++) {
+                for (Instruction i : blocks.get(b).getInstructions()) {
+                    if (i.getDest() != Instruction.NONE) {
+                        written[i.getDest()]++;
+                    }
+                }
+            }
+
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int b = first; b < last; b++) {
+                    Iterator<Instruction> it = blocks.get(b).getInstructions().iterator();
+                    while (it.hasNext()) {
+                        Instruction i = it.next();
+                        if (isInvariant(i, written, constant)) {
+                            it.remove();
+                            preheader.add(preheader.size() - 1, i);
+                            written[i.getDest()] = 0;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // true for the register of a variable, false for temporaries including
+    // the ones made since uses were last counted
+    private boolean standsForVariable(int value) {
+        return value < isVariable.length && isVariable[value];
+    }
+
+    // the CONST writing each temporary, null for other registers
+    private Instruction[] findConstants() {
+        Instruction[] constant = new Instruction[program.getValueCount()];
+        for (BasicBlock b : program.getBlocks()) {
+            for (Instruction i : b.getInstructions()) {
+                if (i.getOp() == Instruction.CONST && !standsForVariable(i.getDest())) {
+                    constant[i.getDest()] = i;
+                }
+            }
+        }
+        return constant;
+    }
+
+    // a temporary that is a constant times a variable of a loop that only
+    // changes by adding or subtracting a constant gets a register of its
+    // own instead: set before the loop and stepped right after the
+    // variable, so the multiply in the loop becomes an add
+    private void reduceInductions() {
+        ArrayList<BasicBlock> blocks = program.getBlocks();
+        for (BasicBlock[] loop : loops) {
+            Instruction[] constant = findConstants(); // with the registers made for inner loops
+            ArrayList<Instruction> preheader = loop[0].getInstructions();
+            int first = blocks.indexOf(loop[0]) + 1;
+            int last  = blocks.indexOf(loop[1]);
+            int[]         written = new int[program.getValueCount()];
+            Instruction[] writer  = new Instruction[program.getValueCount()];
+            for (int b = first; b < last; b++) {
+                for (Instruction i : blocks.get(b).getInstructions()) {
+                    if (i.getDest() != Instruction.NONE) {
+                        written[i.getDest()]++;
+                        writer[i.getDest()] = i;
+                    }
+                }
+            }
+
+            HashMap<String, Integer> reduced = new HashMap<String, Integer>(); // "variable*factor" -> register
+            for (int b = first; b < last; b++) {
+                ArrayList<Instruction> code = blocks.get(b).getInstructions();
+                for (int n = 0; n < code.size(); n++) {
+                    Instruction i = code.get(n);
+                    if (i.getOp() != Instruction.MUL || written[i.getDest()] != 1
+                            || Math.max(i.getLeft(), i.getRight()) >= constant.length) {
+                        continue; // not a product, or one of a register made here
+                    }
+                    int variable = i.getLeft();
+                    int factor   = i.getRight();
+                    if (constant[variable] != null) {
+                        variable = i.getRight();
+                        factor   = i.getLeft();
+                    }
+                    Integer step = step(variable, written, writer, constant);
+                    if (constant[factor] == null || written[factor] != 0 || step == null) {
+                        continue;
+                    }
+
+                    String key = variable + "*" + constant[factor].getValue();
+                    Integer value = reduced.get(key);
+                    if (value == null) {
+                        // value = variable * factor before the loop, value += step * factor after the variable changes
+                        value = program.newValue('i');
+                        int increment = program.newValue('i');
+                        preheader.add(preheader.size() - 1, new Instruction(Instruction.MUL, value,
+                            variable, factor, 'i'));
+                        preheader.add(preheader.size() - 1, Instruction.constant(increment, 'i',
+                            step * constant[factor].getValue(), null));
+                        Instruction update = writer[variable];
+                        for (BasicBlock c : blocks.subList(first, last)) {
+                            int at = c.getInstructions().indexOf(update);
+                            if (at >= 0) {
+                                c.getInstructions().add(at + 1, new Instruction(Instruction.ADD, value,
+                                    value, increment, 'i').wrapping().comment("induction variable"));
+                            }
+                        }
+                        reduced.put(key, value);
+                        n = code.indexOf(i); // the add may have gone in above
+                    }
+
+                    // a copy where the product was: value is only variable * factor
+                    // up to the variable's next change, and the product may be
+                    // read after that or behind the loop
+                    code.set(n, Instruction.copy(i.getDest(), value, 'i').comment(i.getComment()));
+                }
+            }
+        }
+    }
+
+    // what a loop adds to variable on each change, when the loop has exactly
+    // one instruction writing it and that adds or subtracts a constant
+    // written before the loop; null otherwise
+    private Integer step(int variable, int[] written, Instruction[] writer, Instruction[] constant) {
+        if (!standsForVariable(variable) || written[variable] != 1) {
+            return null;
+        }
+        Instruction update = writer[variable];
+        if (update.getLeft() != variable && update.getRight() != variable) {
+            return null; // variable := constant + something else
+        }
+        int other = (update.getLeft() == variable) ? update.getRight() : update.getLeft();
+        if (other == Instruction.NONE || other >= constant.length || constant[other] == null
+                || written[other] != 0) {
+            return null;
+        } else if (update.getOp() == Instruction.ADD) {
+            return constant[other].getValue();
+        } else if (update.getOp() == Instruction.SUB && update.getLeft() == variable) {
+            return -constant[other].getValue();
+        }
+        return null;
+    }
+
+    // multiplies, divisions and remainders by a constant become shifts
+    // and adds, see multiply() and divide()
+    private void reduceStrength() {
+        Instruction[] constant = findConstants();
+        for (BasicBlock b : program.getBlocks()) {
+            ArrayList<Instruction> code    = b.getInstructions();
+            ArrayList<Instruction> reduced = new ArrayList<Instruction>(code.size());
+            for (Instruction i : code) {
+                int op = i.getOp();
+                if (op == Instruction.MUL && constant[i.getRight()] != null) {
+                    multiply(reduced, i.getDest(), i.getLeft(), constant[i.getRight()].getValue(), i.getRight());
+                } else if (op == Instruction.MUL && constant[i.getLeft()] != null) {
+                    multiply(reduced, i.getDest(), i.getRight(), constant[i.getLeft()].getValue(), i.getLeft());
+                } else if ((op == Instruction.DIV || op == Instruction.REM) && constant[i.getRight()] != null) {
+                    divide(reduced, i, constant[i.getRight()].getValue());
+                } else {
+                    reduced.add(i);
+                    continue;
+                }
+                reduced.get(reduced.size() - 1).comment(i.getComment());
+            }
+            code.clear();
+            code.addAll(reduced);
+        }
+    }
+
+    // appends code setting dest to source * factor to code: a shift for a
+    // power of 2, two shifts and an add or subtract for a sum of two powers
+    // of 2 or one less than a power of 2, a MUL of source and register
+    // otherwise; register holds factor, or is NONE when none does yet
+    private void multiply(ArrayList<Instruction> code, int dest, int source, int factor, int register) {
+        int high = 31 - Integer.numberOfLeadingZeros(factor); // a power of 2 at most factor, taken unsigned
+        int low  = Integer.numberOfTrailingZeros(factor);
+        if (factor == 0) {
+            code.add(Instruction.constant(dest, 'i', 0, null));
+        } else if (factor == 1) {
+            code.add(Instruction.copy(dest, source, 'i'));
+        } else if (Integer.bitCount(factor) == 1) {
+            code.add(Instruction.shift(Instruction.SHIFT_LEFT, dest, source, low));
+        } else if (Integer.bitCount(factor) == 2) {
+            int shifted = shift(code, Instruction.SHIFT_LEFT, source, high);
+            int rest    = (low == 0) ? source : shift(code, Instruction.SHIFT_LEFT, source, low);
+            code.add(new Instruction(Instruction.ADD, dest, shifted, rest, 'i').wrapping());
+        } else if (factor > 0 && Integer.bitCount(factor + 1) == 1) {
+            int shifted = shift(code, Instruction.SHIFT_LEFT, source, high + 1);
+            code.add(new Instruction(Instruction.SUB, dest, shifted, source, 'i').wrapping());
+        } else if (factor != Integer.MIN_VALUE && Integer.bitCount(-factor) == 1) {
+            int shifted = shift(code, Instruction.SHIFT_LEFT, source, Integer.numberOfTrailingZeros(-factor));
+            code.add(new Instruction(Instruction.SUB, dest, constant(code, 0), shifted, 'i').wrapping());
+        } else {
+            if (register == Instruction.NONE) {
+                register = constant(code, factor);
+            }
+            code.add(new Instruction(Instruction.MUL, dest, source, register, 'i'));
+        }
+    }
+
+    // appends code for the DIV or REM division by divisor, a constant, to
+    // code. Dividing by a power of 2 shifts, after adding one less than
+    // the divisor to negative dividends so the quotient is still truncated;
+    // other divisors multiply by a magic number, see magic(). Division by
+    // 0 or by the most negative integer is left as it is
+    private void divide(ArrayList<Instruction> code, Instruction division, int divisor) {
+        int     dest      = division.getDest();
+        int     dividend  = division.getLeft();
+        boolean remainder = division.getOp() == Instruction.REM;
+        int     size      = Math.abs(divisor);
+        if (divisor == 0 || divisor == Integer.MIN_VALUE) {
+            code.add(division);
+            return;
+        } else if (size == 1) {
+            if (remainder) {
+                code.add(Instruction.constant(dest, 'i', 0, null));
+            } else if (divisor == 1) {
+                code.add(Instruction.copy(dest, dividend, 'i'));
+            } else {
+                code.add(new Instruction(Instruction.SUB, dest, constant(code, 0), dividend, 'i').wrapping());
+            }
+            return;
+        }
+
+        int quotient;
+        int result = (remainder || divisor < 0) ? program.newValue('i') : dest;
+        if (Integer.bitCount(size) == 1) {
+            int bits = Integer.numberOfTrailingZeros(size);
+            // size - 1 when dividend is negative, else 0
+            int sign = (bits == 1) ? dividend : shift(code, Instruction.SHIFT_RIGHT, dividend, 31);
+            int bias = shift(code, Instruction.SHIFT_RIGHT_LOGICAL, sign, 32 - bits);
+            int biased = program.newValue('i');
+            code.add(new Instruction(Instruction.ADD, biased, dividend, bias, 'i').wrapping());
+            if (remainder) {
+                // dividend - (biased with the low bits cleared)
+                int cleared = program.newValue('i');
+                code.add(new Instruction(Instruction.AND, cleared, biased, constant(code, -size), 'i'));
+                code.add(new Instruction(Instruction.SUB, dest, dividend, cleared, 'i').wrapping());
+                return;
+            }
+            code.add(Instruction.shift(Instruction.SHIFT_RIGHT, result, biased, bits));
+            quotient = result;
+        } else {
+            int[] magic = magic(size);
+            int high = program.newValue('i');
+            code.add(new Instruction(Instruction.MUL_HIGH, high, dividend, constant(code, magic[0]), 'i'));
+            if (magic[0] < 0) {
+                int sum = program.newValue('i');
+                code.add(new Instruction(Instruction.ADD, sum, high, dividend, 'i').wrapping());
+                high = sum;
+            }
+            if (magic[1] > 0) {
+                high = shift(code, Instruction.SHIFT_RIGHT, high, magic[1]);
+            }
+            // adding 1 for a negative dividend truncates instead of rounding down
+            int sign = shift(code, Instruction.SHIFT_RIGHT_LOGICAL, dividend, 31);
+            code.add(new Instruction(Instruction.ADD, result, high, sign, 'i').wrapping());
+            quotient = result;
+            if (remainder) {
+                // dividend - quotient * size, the sign of the divisor cancels out
+                int product = program.newValue('i');
+                multiply(code, product, quotient, size, Instruction.NONE);
+                code.add(new Instruction(Instruction.SUB, dest, dividend, product, 'i').wrapping());
+                return;
+            }
+        }
+        if (divisor < 0) {
+            code.add(new Instruction(Instruction.SUB, dest, constant(code, 0), quotient, 'i').wrapping());
+        }
+    }
+
+    // magic number and shift for dividing by d, at least 2: the quotient is
+    // the upper half of magic * x, plus x when magic is negative, shifted
+    // right, plus 1 for negative x. From Hacker's Delight, 10-1
+    private static int[] magic(int d) {
+        long twoTo31 = 0x80000000L;
+        long limit   = twoTo31 - 1 - twoTo31 % d; // largest dividend with remainder d - 1
+        int  p       = 31;
+        long q1 = twoTo31 / limit;
+        long r1 = twoTo31 - q1 * limit;
+        long q2 = twoTo31 / d;
+        long r2 = twoTo31 - q2 * d;
+        long delta;
+        do {
+            p++;
+            q1 *= 2;
+            r1 *= 2;
+            if (r1 >= limit) {
+                q1++;
+                r1 -= limit;
+            }
+            q2 *= 2;
+            r2 *= 2;
+            if (r2 >= d) {
+                q2++;
+                r2 -= d;
+            }
+            delta = d - r2;
+        } while (q1 < delta || (q1 == delta && r1 == 0));
+        return new int[] { (int) (q2 + 1), p - 32 };
+    }
+
+    // appends a shift of source by bits to code, returns the register written
+    private int shift(ArrayList<Instruction> code, int op, int source, int bits) {
+        int result = program.newValue('i');
+        code.add(Instruction.shift(op, result, source, bits));
+        return result;
+    }
+
+    // appends a CONST of value to code, returns the register written
+    private int constant(ArrayList<Instruction> code, int value) {
+        int result = program.newValue('i');
+        code.add(Instruction.constant(result, 'i', value, null));
+        return result;
+    }
+
+    private boolean isInvariant(Instruction i, int[] written, Instruction[] constant) {
+        if (!i.isPure() || isVariable[i.getDest()] || written[i.getDest()] != 1
+                || (i.getLeft() != Instruction.NONE && written[i.getLeft()] > 0)
+                || (i.getRight() != Instruction.NONE && written[i.getRight()] > 0)) {
+            return false;
+        }
+        if (i.getOp() == Instruction.DIV || i.getOp() == Instruction.REM) {
+            Instruction divisor = constant[i.getRight()];
+            return divisor != null && divisor.getValue() != 0;
+        }
+        return true;
+    }
+
+    // a BRANCH on a logical not branches the other way on its operand,
+    // and one on a comparison compares the operands itself, as long as
+    // the condition is computed in the same block and used nowhere else
+    private void fuseBranches() {
+        for (BasicBlock b : program.getBlocks()) {
+            ArrayList<Instruction> code = b.getInstructions();
+            Instruction branch = b.getTerminator();
+            if (branch == null || branch.getOp() != Instruction.BRANCH) {
+                continue;
+            }
+            int n = code.size() - 1;
+            while (branch.getCompare() == Instruction.NONE) {
+                int condition = branch.getLeft();
+                Instruction def = definition(code, n, condition);
+                if (def == null || uses[condition] != 1 || isVariable[condition]
+                        || !unchangedSince(code, def, n, def.getLeft(), def.getRight())) {
+                    break;
+                }
+                if (def.getOp() == Instruction.NOT && def.getType() == 'l') {
+                    branch.invert();
+                    branch.setLeft(def.getLeft());
+                } else if (def.getOp() >= Instruction.LESS && def.getOp() <= Instruction.NOT_EQUAL) {
+                    branch.setCompare(def.getOp(), def.getLeft(), def.getRight());
+                    uses[def.getRight()]++;
+                } else {
+                    break;
+                }
+                uses[def.getLeft()]++;
+                uses[condition]--;
+            }
+        }
+    }
+
+    // last instruction before index end in code that writes value, null if none
+    private static Instruction definition(ArrayList<Instruction> code, int end, int value) {
+        for (int n = end - 1; n >= 0; n--) {
+            if (code.get(n).getDest() == value) {
+                return code.get(n);
+            }
+        }
+        return null;
+    }
+
+    // true when neither left nor right is written after def and before index end
+    private static boolean unchangedSince(ArrayList<Instruction> code, Instruction def, int end,
+            int left, int right) {
+        for (int n = end - 1; code.get(n) != def; n--) {
+            int dest = code.get(n).getDest();
+            if (dest != Instruction.NONE && (dest == left || dest == right)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // removes instructions whose result is never read, until none are left
+    private void removeDeadCode() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : program.getBlocks()) {
+                // backwards, so a chain of dead instructions goes in one
+                // sweep, and compacted once instead of shifting the rest of
+                // the block for every removal
+                ArrayList<Instruction> code = b.getInstructions();
+                boolean[] dead = new boolean[code.size()];
+                boolean found  = false;
+                for (int n = code.size() - 1; n >= 0; n--) {
+                    Instruction i = code.get(n);
+                    if (i.isPure() && uses[i.getDest()] == 0) {
+                        if (i.getLeft() != Instruction.NONE) {
+                            uses[i.getLeft()]--;
+                        }
+                        if (i.getRight() != Instruction.NONE) {
+                            uses[i.getRight()]--;
+                        }
+                        dead[n] = true;
+                        found   = true;
+                    }
+                }
+                if (found) {
+                    int to = 0;
+                    for (int n = 0; n < dead.length; n++) {
+                        if (!dead[n]) {
+                            code.set(to++, code.get(n));
+                        }
+                    }
+                    code.subList(to, code.size()).clear();
+                    changed = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * Options.java
+ *
+ * Command line options for Main:
+ *
+ *   java Main sourcefile.c [verbose] [--listing[=path]] [--lex-threads=N]
+ *                          [--max-errors=N] [-O0|-O1]
+ *   java Main -j N sourcefile.c... [@manifest]... [other options]
+ *   java Main --server[=port]
+ *   java Main --watch dir [options]
+ *
+ *   sourcefile.c       the program, - to read it from standard input
+ *   verbose            true or 1 to print tokens, symbol table and derivation
+ *   --listing[=path]   write the listing file, listing_file.txt by default
+ *   --lex-threads=N    scan large files on N threads, 1 by default
+ *   --max-errors=N     stop parsing after N errors, 100 by default
+ *   --output=path      write the code to path, out.s by default
+ *   -O0, -O1           optimization level, -O0 by default; -O0 generates
+ *                      the same code as always, -O1 folds constants and
+ *                      keeps values in registers, then reports what the
+ *                      peephole pass removed
+ *   -j N               batch mode, compile every source file given on N
+ *                      threads; file.c is compiled to file.s, and with
+ *                      --listing its listing goes to file.listing.txt
+ *   @manifest          batch mode, compile the files listed in manifest,
+ *                      one path per line; blank lines and lines starting
+ *                      with # are skipped, relative paths are relative
+ *                      to the manifest
+ *   --cache[=dir]      keep every compilation in dir, ~/.agc-cache by
+ *                      default, and take it from there when the same
+ *                      source is compiled again with the same options; not
+ *                      with verbose or --listing, whose output is not kept
+ *   --cache-size=N     keep at most N megabytes in the cache, 64 by default
+ *   --cache-stats      print the hits and misses of the cache at the end,
+ *                      the only thing done when no source file is given
+ *   --server[=port]    run as a compile server on the loopback port, 4110
+ *                      by default, see CompileServer and CompileClient
+ *   --watch dir        compile every .c file under dir, then compile each
+ *                      again whenever it changes, file.c to file.s, until
+ *                      the process is stopped; see Watcher
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+public class Options {
+    public static final String DEFAULT_LISTING = "listing_file.txt";
+    public static final String STANDARD_INPUT  = "-";
+    public static final String DEFAULT_CACHE   = ".agc-cache"; // in the home directory
+    public static final int    MAX_OPTIMIZATION = 1;
+
+    private String  sourcePath;
+    private ArrayList<String> sourcePaths; // every source file, in order
+    private int     jobs;        // threads compiling a batch, 0 when not in batch mode
+    private boolean verbose;
+    private String  listingPath; // null when no listing file is written
+    private String  outputPath;  // file the code is written to
+    private int     serverPort;  // port to serve compilations on, 0 when not a server
+    private String  watchDirectory; // directory to watch, null when not watching
+    private String  cacheDirectory; // null when there is no cache
+    private long    cacheSize;   // bytes the cache may take
+    private boolean cacheStatistics;
+    private int     lexThreads;  // 1 scans lazily on the parsing thread
+    private int     maxErrors;   // parse errors reported before giving up
+    private int     optimization; // -O level, 0 to MAX_OPTIMIZATION
+
+    public Options() {
+        this.sourcePath  = null;
+        this.sourcePaths = new ArrayList<String>();
+        this.jobs        = 0;
+        this.verbose     = false;
+        this.listingPath = null;
+        this.outputPath  = CodeGenerator.DEFAULT_OUTPUT;
+        this.serverPort  = 0;
+        this.watchDirectory = null;
+        this.cacheDirectory = null;
+        this.cacheSize   = CompilationCache.DEFAULT_SIZE;
+        this.cacheStatistics = false;
+        this.lexThreads  = 1;
+        this.maxErrors   = RDParser.DEFAULT_MAX_ERRORS;
+        this.optimization = 0;
+    }
+
+    // throws an IllegalArgumentException with a usage message for bad
+    // arguments, an IOException when a manifest cannot be read
+    public static Options parse(String[] args) throws IOException {
+        Options options = new Options();
+        boolean batch   = false;
+
+        for (int n = 0; n < args.length; n++) {
+            String arg = args[n];
+            if (arg.equals("-j")) {
+                if (++n == args.length) {
+                    throw new IllegalArgumentException("Expected a number of threads after -j\n" + usage());
+                }
+                options.jobs = parsePositive("-j" + args[n], 2);
+                batch = true;
+            } else if (arg.startsWith("-j")) {
+                options.jobs = parsePositive(arg, 2);
+                batch = true;
+            } else if (arg.startsWith("@")) {
+                options.sourcePaths.addAll(readManifest(Paths.get(arg.substring(1))));
+                batch = true;
+            } else if (arg.equals("--listing")) {
+                options.listingPath = DEFAULT_LISTING;
+            } else if (arg.startsWith("--listing=")) {
+                options.listingPath = arg.substring("--listing=".length());
+            } else if (arg.startsWith("--lex-threads=")) {
+                options.lexThreads = parsePositive(arg, "--lex-threads=".length());
+            } else if (arg.startsWith("--output=")) {
+                options.outputPath = arg.substring("--output=".length());
+            } else if (arg.equals("--cache")) {
+                options.cacheDirectory = Paths.get(System.getProperty("user.home"), DEFAULT_CACHE).toString();
+            } else if (arg.startsWith("--cache=")) {
+                options.cacheDirectory = arg.substring("--cache=".length());
+            } else if (arg.startsWith("--cache-size=")) {
+                options.cacheSize = (long) parsePositive(arg, "--cache-size=".length()) << 20;
+            } else if (arg.equals("--cache-stats")) {
+                options.cacheStatistics = true;
+            } else if (arg.equals("--server")) {
+                options.serverPort = CompileServer.DEFAULT_PORT;
+            } else if (arg.startsWith("--server=")) {
+                options.serverPort = parsePositive(arg, "--server=".length());
+            } else if (arg.equals("--watch")) {
+                if (++n == args.length) {
+                    throw new IllegalArgumentException("Expected a directory after --watch\n" + usage());
+                }
+                options.watchDirectory = args[n];
+            } else if (arg.startsWith("--watch=")) {
+                options.watchDirectory = arg.substring("--watch=".length());
+            } else if (arg.startsWith("--max-errors=")) {
+                options.maxErrors = parsePositive(arg, "--max-errors=".length());
+            } else if (arg.matches("-O[0-9]")) {
+                options.optimization = arg.charAt(2) - '0';
+                if (options.optimization > MAX_OPTIMIZATION) {
+                    throw new IllegalArgumentException("No optimization level " + arg
+                        + ", -O" + MAX_OPTIMIZATION + " is the highest\n" + usage());
+                }
+            } else if (arg.startsWith("-") && !arg.equals(STANDARD_INPUT)) {
+                throw new IllegalArgumentException("Unknown option " + arg + '\n' + usage());
+            } else if (options.sourcePath == null) {
+                options.sourcePath = arg;
+                options.sourcePaths.add(arg);
+            } else if (arg.equalsIgnoreCase("true") || arg.equals("1")) {
+                options.verbose = true;
+            } else if (arg.equalsIgnoreCase("false") || arg.equals("0")) {
+                options.verbose = false;
+            } else {
+                // more source files, for a batch
+                options.sourcePaths.add(arg);
+            }
+        }
+
+        if (options.isServer()) {
+            if (!options.sourcePaths.isEmpty() || batch || options.isWatch()) {
+                throw new IllegalArgumentException("A server takes its source files from requests\n"
+                    + usage());
+            }
+            return options;
+        } else if (options.isWatch()) {
+            if (!options.sourcePaths.isEmpty() || batch) {
+                throw new IllegalArgumentException("Watch mode takes its source files from the directory\n"
+                    + usage());
+            } else if (options.listingPath != null && !options.listingPath.equals(DEFAULT_LISTING)) {
+                throw new IllegalArgumentException("--listing=path names one file, in watch mode use --listing\n"
+                    + usage());
+            } else if (!options.outputPath.equals(CodeGenerator.DEFAULT_OUTPUT)) {
+                throw new IllegalArgumentException("--output=path names one file, watch mode writes file.s\n"
+                    + usage());
+            }
+            return options;
+        } else if (options.sourcePaths.isEmpty() && options.cacheStatistics) {
+            if (options.cacheDirectory == null) {
+                throw new IllegalArgumentException("--cache-stats needs a cache\n" + usage());
+            }
+            return options;
+        } else if (options.sourcePaths.isEmpty()) {
+            throw new IllegalArgumentException("No source file given\n" + usage());
+        } else if (!batch && options.sourcePaths.size() > 1) {
+            throw new IllegalArgumentException("Unexpected argument " + options.sourcePaths.get(1)
+                + '\n' + usage());
+        }
+        options.sourcePath = options.sourcePaths.get(0);
+        if (batch) {
+            if (options.jobs == 0) {
+                options.jobs = Runtime.getRuntime().availableProcessors();
+            }
+            if (options.listingPath != null && !options.listingPath.equals(DEFAULT_LISTING)) {
+                throw new IllegalArgumentException("--listing=path names one file, in batch mode use --listing\n"
+                    + usage());
+            } else if (!options.outputPath.equals(CodeGenerator.DEFAULT_OUTPUT)) {
+                throw new IllegalArgumentException("--output=path names one file, batch mode writes file.s\n"
+                    + usage());
+            } else if (options.sourcePaths.contains(STANDARD_INPUT)) {
+                throw new IllegalArgumentException("Batch mode cannot read standard input\n" + usage());
+            }
+            // two compilations writing the same files would race
+            HashSet<Path> seen = new HashSet<Path>();
+            for (String source : options.sourcePaths) {
+                if (!seen.add(Paths.get(source).toAbsolutePath().normalize())) {
+                    throw new IllegalArgumentException("Source file " + source + " is given twice");
+                }
+            }
+        }
+        return options;
+    }
+
+    // the source files listed in manifest
+    private static ArrayList<String> readManifest(Path manifest) throws IOException {
+        ArrayList<String> sources = new ArrayList<String>();
+        Path directory = manifest.toAbsolutePath().getParent();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                sources.add(directory.resolve(line).toString());
+            }
+        }
+        return sources;
+    }
+
+    // the positive number at the end of arg, starting at index
+    private static int parsePositive(String arg, int index) {
+        try {
+            int value = Integer.parseInt(arg.substring(index));
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Expected a positive number in " + arg + '\n' + usage());
+    }
+
+    public static String usage() {
+        return "Usage: java Main sourcefile.c [verbose] [--listing[=path]] [--lex-threads=N]"
+            + " [--max-errors=N] [-O0|-O1]\n"
+            + " [--output=path] [--cache[=dir]] [--cache-size=N] [--cache-stats]\n"
+            + "       java Main -j N sourcefile.c... [@manifest]... [options]\n"
+            + "       java Main --server[=port]\n"
+            + "       java Main --watch dir [options]";
+    }
+
+    public String getSourcePath() {
+        return sourcePath;
+    }
+
+    // every source file, the one of getSourcePath() first
+    public ArrayList<String> getSourcePaths() {
+        return sourcePaths;
+    }
+
+    // true when compiling a batch of files, see getJobs()
+    public boolean isBatch() {
+        return jobs > 0;
+    }
+
+    // threads compiling a batch
+    public int getJobs() {
+        return jobs;
+    }
+
+    // the file a batch compiles source to, source with its extension
+    // replaced by extension
+    public static String batchPath(String source, String extension) {
+        int dot   = source.lastIndexOf('.');
+        int slash = Math.max(source.lastIndexOf('/'), source.lastIndexOf('\\'));
+        return ((dot > slash) ? source.substring(0, dot) : source) + extension;
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public String getListingPath() {
+        return listingPath;
+    }
+
+    // true when the source is read from standard input
+    public boolean isStandardInput() {
+        return STANDARD_INPUT.equals(sourcePath);
+    }
+
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    // makes every relative path absolute by resolving it against directory
+    public void resolve(Path directory) {
+        for (int n = 0; n < sourcePaths.size(); n++) {
+            if (!sourcePaths.get(n).equals(STANDARD_INPUT)) {
+                sourcePaths.set(n, directory.resolve(sourcePaths.get(n)).toString());
+            }
+        }
+        if (sourcePath != null) {
+            sourcePath = sourcePaths.get(0);
+        }
+        outputPath = directory.resolve(outputPath).toString();
+        if (listingPath != null) {
+            listingPath = directory.resolve(listingPath).toString();
+        }
+        if (cacheDirectory != null) {
+            cacheDirectory = directory.resolve(cacheDirectory).toString();
+        }
+        if (watchDirectory != null) {
+            watchDirectory = directory.resolve(watchDirectory).toString();
+        }
+    }
+
+    // true when there is nothing to compile, only statistics to print
+    public boolean isStatisticsOnly() {
+        return sourcePath == null && cacheStatistics;
+    }
+
+    // directory of the cache, null when compilations are not cached
+    public String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public boolean isCacheStatistics() {
+        return cacheStatistics;
+    }
+
+    public boolean isServer() {
+        return serverPort > 0;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    // true when watching a directory, see getWatchDirectory()
+    public boolean isWatch() {
+        return watchDirectory != null;
+    }
+
+    public String getWatchDirectory() {
+        return watchDirectory;
+    }
+
+    public int getLexThreads() {
+        return lexThreads;
+    }
+
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    public int getOptimization() {
+        return optimization;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * ParseListener.java
+ *
+ * Receives events from RDParser as it parses. The parser always holds a
+ * listener, NONE when nothing is installed, so the calls cost nothing
+ * once the JIT has inlined the empty methods.
+ */
+
+public interface ParseListener {
+
+    // listener that ignores every event
+    ParseListener NONE = new ParseListener() {
+        public void enterRule(int rule) {
+        }
+
+        public void trace(String event) {
+        }
+    };
+
+    // called when the parser starts on production rule, numbered as in
+    // the grammar at the top of RDParser.java
+    void enterRule(int rule);
+
+    // called with a short name for a statement or io call being parsed
+    void trace(String event);
+
+    // listener that passes every event to first and then to second
+    static ParseListener both(final ParseListener first, final ParseListener second) {
+        return new ParseListener() {
+            public void enterRule(int rule) {
+                first.enterRule(rule);
+                second.enterRule(rule);
+            }
+
+            public void trace(String event) {
+                first.trace(event);
+                second.trace(event);
+            }
+        };
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * ParseTracer.java
+ *
+ * ParseListener that records the names of the statements the parser
+ * went through, for debugging purposes only
+ */
+
+public class ParseTracer implements ParseListener {
+    private StringBuilder trace = new StringBuilder();
+
+    public void enterRule(int rule) {
+    }
+
+    public void trace(String event) {
+        trace.append(event).append(' ');
+    }
+
+    public String toString() {
+        return trace.toString();
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * Peephole.java
+ *
+ * Peephole optimizer over the code CodeGenerator collected, run from -O1
+ * on before it is written out. Each rule looks at a window of lines in a
+ * row, comments left out, and rewrites them when they match. Rules are
+ * tried at every line until none of them applies anywhere. Some rules
+ * need to know which registers are still read later; that is worked out
+ * over the jumps between labels at the start of every sweep. String
+ * constants are moved from the code into the data section at the end.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+public class Peephole {
+    private ArrayList<MipsInstruction> code;    // removed lines are null until the end of a sweep
+    private ArrayList<MipsInstruction> strings; // string constants taken out of the code
+    private int removed;                        // instructions and directives removed
+    private long[] liveOut;                     // registers read after each line, see MipsInstruction.bit()
+    private boolean stale;                      // true once a change may have made liveOut wrong
+
+    // a rewrite of size lines in a row
+    private abstract static class Rule {
+        final int     size;
+        final boolean usesLiveness; // only sound while liveOut is up to date
+
+        Rule(int size) {
+            this(size, false);
+        }
+
+        Rule(int size, boolean usesLiveness) {
+            this.size         = size;
+            this.usesLiveness = usesLiveness;
+        }
+
+        // tries to rewrite the lines of p at the indices in at, true when it did
+        abstract boolean apply(Peephole p, int[] at);
+    }
+
+    private static final Rule[] RULES = {
+        // move $t0 $t0
+        new Rule(1) {
+            boolean apply(Peephole p, int[] at) {
+                MipsInstruction move = p.code.get(at[0]);
+                if (move.is("move") && move.getOperand(0).equals(move.getOperand(1))) {
+                    p.remove(at[0]);
+                    return true;
+                }
+                return false;
+            }
+        },
+        // sw $t0 X then lw $t1 X, the value is still in $t0
+        new Rule(2) {
+            boolean apply(Peephole p, int[] at) {
+                MipsInstruction store = p.code.get(at[0]);
+                MipsInstruction load  = p.code.get(at[1]);
+                if (!store.is("sw") || !load.is("lw") || !store.getOperand(1).equals(load.getOperand(1))) {
+                    return false;
+                }
+                if (store.getOperand(0).equals(load.getOperand(0))) {
+                    p.remove(at[1]);
+                } else {
+                    p.code.set(at[1], MipsInstruction.instruction("move", load.getOperand(0),
+                        store.getOperand(0)));
+                }
+                return true;
+            }
+        },
+        // lw $t0 X twice
+        new Rule(2) {
+            boolean apply(Peephole p, int[] at) {
+                MipsInstruction first  = p.code.get(at[0]);
+                MipsInstruction second = p.code.get(at[1]);
+                if (first.is("lw") && second.is("lw") && first.toString().equals(second.toString())
+                        && !first.getOperand(1).contains(first.getOperand(0))) {
+                    p.remove(at[1]);
+                    return true;
+                }
+                return false;
+            }
+        },
+        // sw $t0 X then sw $t1 X, the first store is never seen
+        new Rule(2) {
+            boolean apply(Peephole p, int[] at) {
+                MipsInstruction first  = p.code.get(at[0]);
+                MipsInstruction second = p.code.get(at[1]);
+                if (first.is("sw") && second.is("sw") && first.getOperand(1).equals(second.getOperand(1))) {
+                    p.remove(at[0]);
+                    return true;
+                }
+                return false;
+            }
+        },
+        // j or branch to a label right below it
+        new Rule(1) {
+            boolean apply(Peephole p, int[] at) {
+                MipsInstruction jump = p.code.get(at[0]);
+                if (jump.isJump() && p.labelFollows(at[0], jump.getTarget())) {
+                    p.remove(at[0]);
+                    return true;
+                }
+                return false;
+            }
+        },
+        // beq ... L1, j L2, L1: becomes bne ... L2, L1:
+        new Rule(2) {
+            boolean apply(Peephole p, int[] at) {
+                MipsInstruction branch = p.code.get(at[0]);
+                MipsInstruction jump   = p.code.get(at[1]);
+                String inverse = (branch.getKind() == MipsInstruction.INSTRUCTION)
+                    ? inverse(branch.getOp()) : null;
+                if (inverse == null || !jump.is("j") || !p.labelFollows(at[1], branch.getTarget())) {
+                    return false;
+                }
+                p.code.set(at[0], MipsInstruction.instruction(inverse, branch.getOperand(0),
+                    branch.getOperand(1), jump.getTarget()));
+                p.remove(at[1]);
+                return true;
+            }
+        },
+        // code after a j that no label leads to
+        new Rule(2) {
+            boolean apply(Peephole p, int[] at) {
+                MipsInstruction jump = p.code.get(at[0]);
+                MipsInstruction next = p.code.get(at[1]);
+                if (jump.isUnconditionalJump() && next.getKind() == MipsInstruction.INSTRUCTION) {
+                    p.remove(at[1]);
+                    return true;
+                }
+                return false;
+            }
+        },
+        // a register written and never read
+        new Rule(1, true) {
+            boolean apply(Peephole p, int[] at) {
+                MipsInstruction line = p.code.get(at[0]);
+                if (line.isComputation() && line.getDefined() != 0
+                        && (line.getDefined() & p.liveOut[at[0]]) == 0) {
+                    p.remove(at[0]);
+                    return true;
+                }
+                return false;
+            }
+        },
+        // li $t0 5 then move $a0 $t0 when $t0 is not read again
+        new Rule(2, true) {
+            boolean apply(Peephole p, int[] at) {
+                MipsInstruction line = p.code.get(at[0]);
+                MipsInstruction move = p.code.get(at[1]);
+                if (line.isComputation() && move.is("move") && line.getDefined() != 0
+                        && line.getDefined() == MipsInstruction.bit(move.getOperand(1))
+                        && (line.getDefined() & p.liveOut[at[1]]) == 0) {
+                    p.code.set(at[0], line.withDestination(move.getOperand(0)));
+                    p.remove(at[1]);
+                    return true;
+                }
+                return false;
+            }
+        },
+        // .data, a string constant, .text
+        new Rule(3) {
+            boolean apply(Peephole p, int[] at) {
+                if (p.code.get(at[0]).isDirective(".data") && p.code.get(at[2]).isDirective(".text")
+                        && p.code.get(at[1]).getKind() == MipsInstruction.TEXT) {
+                    p.strings.add(p.code.get(at[1]));
+                    p.code.set(at[1], null);
+                    p.remove(at[0]);
+                    p.remove(at[2]);
+                    return true;
+                }
+                return false;
+            }
+        }
+    };
+
+    public Peephole(ArrayList<MipsInstruction> code) {
+        this.code    = code;
+        this.strings = new ArrayList<MipsInstruction>();
+    }
+
+    // optimizes the code in place, returns the number of instructions and
+    // directives removed
+    public int run() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            computeLiveness();
+            for (int start = 0; start < code.size(); start++) {
+                for (Rule rule : RULES) {
+                    if (rule.usesLiveness && stale) {
+                        continue;
+                    }
+                    int[] at = window(start, rule.size);
+                    if (at != null && rule.apply(this, at)) {
+                        changed = true;
+                        // the liveness rules only ever leave liveOut too large
+                        stale |= !rule.usesLiveness;
+                    }
+                }
+            }
+            compact();
+        }
+
+        removeUnusedLabels();
+
+        // string constants go after the last .data, the one of the postlog
+        int data = code.size();
+        while (data > 0 && !code.get(data - 1).isDirective(".data")) {
+            data--;
+        }
+        code.addAll(data, strings);
+        return removed;
+    }
+
+    // indices of size lines from start on, comments and removed lines
+    // skipped, null when there are fewer or start is not one of them
+    private int[] window(int start, int size) {
+        if (!isLine(start)) {
+            return null;
+        }
+        int[] at = new int[size];
+        int n = 0;
+        for (int i = start; i < code.size() && n < size; i++) {
+            if (isLine(i)) {
+                at[n++] = i;
+            }
+        }
+        return (n == size) ? at : null;
+    }
+
+    private boolean isLine(int i) {
+        return code.get(i) != null && code.get(i).getKind() != MipsInstruction.COMMENT;
+    }
+
+    private void remove(int i) {
+        code.set(i, null);
+        removed++;
+    }
+
+    // true when label is among the labels right after line i
+    private boolean labelFollows(int i, String label) {
+        for (int n = i + 1; n < code.size(); n++) {
+            MipsInstruction line = code.get(n);
+            if (line == null || line.getKind() == MipsInstruction.COMMENT) {
+                continue;
+            }
+            if (line.getKind() != MipsInstruction.LABEL) {
+                return false;
+            }
+            if (line.getText().equals(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // fills liveOut, going backwards over the code until nothing changes
+    private void computeLiveness() {
+        int size = code.size();
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        for (int i = 0; i < size; i++) {
+            if (code.get(i).getKind() == MipsInstruction.LABEL) {
+                labels.put(code.get(i).getText(), i);
+            }
+        }
+
+        liveOut = new long[size];
+        long[] liveIn = new long[size + 1]; // nothing is live after the last line
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = size - 1; i >= 0; i--) {
+                MipsInstruction line = code.get(i);
+                long out = 0;
+                if (line.isJump()) {
+                    Integer target = labels.get(line.getTarget());
+                    out = (target == null) ? -1L : liveIn[target];
+                }
+                if (!line.isUnconditionalJump()) {
+                    out |= liveIn[i + 1];
+                }
+                long in = line.getUsed() | (out & ~line.getDefined());
+                if (in != liveIn[i] || out != liveOut[i]) {
+                    liveIn[i]  = in;
+                    liveOut[i] = out;
+                    changed    = true;
+                }
+            }
+        }
+        stale = false;
+    }
+
+    // branch taken exactly when op is not, null for anything else
+    private static String inverse(String op) {
+        String[] pairs = { "beq", "bne", "blt", "bge", "bgt", "ble" };
+        for (int n = 0; n < pairs.length; n++) {
+            if (pairs[n].equals(op)) {
+                return pairs[n ^ 1];
+            }
+        }
+        return null;
+    }
+
+    private void compact() {
+        int to = 0;
+        for (MipsInstruction line : code) {
+            if (line != null) {
+                code.set(to++, line);
+            }
+        }
+        while (code.size() > to) {
+            code.remove(code.size() - 1);
+        }
+    }
+
+    // labels nothing jumps to are only noise
+    private void removeUnusedLabels() {
+        HashSet<String> used = new HashSet<String>();
+        for (MipsInstruction line : code) {
+            for (int n = 0; n < line.getOperandCount(); n++) {
+                used.add(line.getOperand(n));
+            }
+        }
+        for (int i = 0; i < code.size(); i++) {
+            MipsInstruction line = code.get(i);
+            if (line.getKind() == MipsInstruction.LABEL && !used.contains(line.getText())) {
+                code.set(i, null);
+            }
+        }
+        compact();
+    }
+}
@@ -25,79 +25,127 @@
  *                      OPEN_PARENS_ID  expression  CLOSING_PARENS_ID
  *  (13) idref       :  IDENTIFIER_ID
  *
+ *  Rules (9) to (12) are parsed with an operator stack, see expression()
+ *
  *  Token IDs are defined in Scanner.java
  */
 
+import java.math.BigInteger; // integer literals of any length
 import java.util.ArrayList;
+import java.util.Arrays;  // for growing the operator stack
+import java.util.HashMap;
+import java.util.List;
 
 public class RDParser {
+    public static final int DEFAULT_MAX_ERRORS = 100;
+
+    private static final int OPERATOR_STACK_SIZE = 16;
 
-    private Token         currentToken;      // current token to begin derivation
+    private int           currentToken;      // index of the current token in the scanner, -1 at EOF
     private SymbolTable   symbolTable;       // stores variables and scopes
     private Scanner       scanner;           // scanner for getToken()
-    private StringBuilder derivation;        // buffer for derivation
-    private StringBuilder errors;            // buffer for error messages
-    private StringBuilder verboseDerivation; // verbose derivation, for debugging purposes only
+    private ParseListener listener;          // told about every rule, NONE when not tracing
+    private ArrayList<Diagnostic> errors;    // error messages, in the order they were found
+    private int           maxErrors;         // parsing stops once this many errors are found
+    private boolean       recovering;        // true from a syntax error until the next match
+    private boolean       aborted;           // true once maxErrors errors were found
     private boolean       isSuccess;         // returns true if input matches grammar
-    private boolean       debug;             // true for debug mode
+    private IrProgram     ir;                // intermediate code built while parsing
     private CodeGenerator codeGen;           // CodeGenerator object for writing to file
     private ExpressionRecord exprRecord;     // for storing type and location of a variable
+    private int           optimization;      // -O level, constants are folded from 1 on
+    private HashMap<Integer, Integer> constants; // known value of variables by number, from -O1
+
+    // operator stack of expression(), one entry per pending operator
+    private int[]  opKind;        // token number of the operator, '!' or '('
+    private int[]  opOperator;    // symbol id of the operator, first char for ADD_OP_ID
+    private char[] leftType;      // type of the left operand
+    private int[]  leftLocation;  // location of the left operand
+    private boolean[] leftIsConstant; // true when the left operand's value is known
+    private int[]  leftConstant;  // that value
+    private int    opTop;         // number of entries on the stack
+
+    public RDParser(Scanner scanner, SymbolTable symbolTable) {
+        this(scanner, symbolTable, ParseListener.NONE);
+    }
+
+    public RDParser(Scanner scanner, SymbolTable symbolTable, ParseListener listener) {
+        this(scanner, symbolTable, listener, DEFAULT_MAX_ERRORS);
+    }
 
-    private int currentOffset;
+    public RDParser(Scanner scanner, SymbolTable symbolTable, ParseListener listener, int maxErrors) {
+        this(scanner, symbolTable, listener, maxErrors, 0);
+    }
+
+    public RDParser(Scanner scanner, SymbolTable symbolTable, ParseListener listener, int maxErrors,
+            int optimization) {
+        this(scanner, symbolTable, listener, maxErrors, optimization, CodeGenerator.DEFAULT_OUTPUT);
+    }
 
-    public RDParser(Scanner scanner, SymbolTable symbolTable, boolean dbg) {
+    // optimization is the -O level the code is generated at, see CodeGenerator,
+    // and the code is written to outputPath, or kept only in the
+    // CodeGenerator when it is null
+    public RDParser(Scanner scanner, SymbolTable symbolTable, ParseListener listener, int maxErrors,
+            int optimization, String outputPath) {
         this.scanner       = scanner;
         this.symbolTable   = symbolTable;
-        this.derivation    = new StringBuilder();
-        this.errors        = new StringBuilder();
-        this.currentToken  = scanner.getToken();
+        this.listener      = listener;
+        this.errors        = new ArrayList<Diagnostic>();
+        this.maxErrors     = maxErrors;
+        this.recovering    = false;
+        this.aborted       = false;
+        this.currentToken  = scanner.nextToken();
         this.isSuccess     = true;
-        this.codeGen       = new CodeGenerator();
+        this.ir            = new IrProgram();
+        this.codeGen       = new CodeGenerator(outputPath);
         this.exprRecord    = new ExpressionRecord();
-        this.currentOffset = 0;
-        this.debug         = dbg;
-
-        if (dbg) {
-            verboseDerivation = new StringBuilder();
-        } else {
-            verboseDerivation = null;
-        }
+        this.optimization  = optimization;
+        this.constants     = new HashMap<Integer, Integer>();
+        this.opKind        = new int[OPERATOR_STACK_SIZE];
+        this.opOperator    = new int[OPERATOR_STACK_SIZE];
+        this.leftType      = new char[OPERATOR_STACK_SIZE];
+        this.leftLocation  = new int[OPERATOR_STACK_SIZE];
+        this.leftIsConstant = new boolean[OPERATOR_STACK_SIZE];
+        this.leftConstant  = new int[OPERATOR_STACK_SIZE];
+        this.opTop         = 0;
 
         // begin parse
         program();
 
         // null is EOF for BufferedReader class
         // write to file happens ONLY when parse is sucessful
-        if (currentToken == null || this.isSuccess) {
+        if ((currentToken < 0 && !aborted) || this.isSuccess) {
+            codeGen.generate(ir, optimization);
             codeGen.writeToFile();
-        } else {
-        	System.out.println(errors.toString());
         }
     }
 
-    public String debug() {
-        return this.verboseDerivation.toString();
-    }
-
-    public String getDerivation() {
-        return this.derivation.toString();
+    // code generator of the program, its code is written out when parsing succeeded
+    public CodeGenerator getCodeGenerator() {
+        return codeGen;
     }
 
     public boolean isSuccessful() {
         return this.isSuccess;
     }
 
+    // error messages found while parsing, at most maxErrors plus a last
+    // one saying parsing gave up
+    public List<Diagnostic> getErrors() {
+        return errors;
+    }
+
     public String toString() {
-        return this.derivation.toString() + '\n'
-            + this.errors.toString() + '\n'
-            + ((this.isSuccess) ? "SUCCESS":"FAIL");
+        StringBuilder result = new StringBuilder();
+        for (Diagnostic d : errors) {
+            result.append(d).append('\n');
+        }
+        return result.append((this.isSuccess) ? "SUCCESS":"FAIL").toString();
     }
 
     // used for determining type of a literal token
-    public char getType(Token t) {
-        String s = t.getLexeme();
-
-        char begin = s.charAt(0);
+    public char getType(int token) {
+        char begin = scanner.firstChar(token);
         if (begin == 't' || begin == 'f') {
             return 'l';
         } else if (begin == '"') {
@@ -107,18 +155,87 @@ public class RDParser {
         }
     }
 
+    // token number of the current token
+    // once parsing gives up every token looks like EOF, so all loops end
+    private int tokenNumber() {
+        return aborted ? Scanner.END_OF_FILE_ID : scanner.getTokenNumber(currentToken);
+    }
+
+    // lexeme of the current token
+    private String lexeme() {
+        return scanner.getLexeme(currentToken);
+    }
+
+    // interned symbol id of the current token
+    private int symbol() {
+        return scanner.getSymbol(currentToken);
+    }
+
     // sets currentToken to a new value if tokens match
-    private void match(Token current, int tokenNum) {
-        if (current.getTokenNumber() == tokenNum) {
-            currentToken = scanner.getToken();
+    // on the first mismatch the error is reported and the token is taken as
+    // a misspelling of the expected one, unless it is a ';' or END; on any
+    // further mismatch before the next match, tokens are skipped up to the
+    // next ';' or END
+    private void match(int tokenNum) {
+        if (tokenNumber() == tokenNum) {
+            currentToken = scanner.nextToken();
+            recovering = false;
+        } else if (!recovering) {
+            error("Parser error: expected " + Scanner.tokenName(tokenNum)
+                + " but found " + Scanner.tokenName(tokenNumber())
+                + found());
+            recovering = true;
+            isSuccess = false;
+
+            if (!isSynchronizing(tokenNumber())) {
+                currentToken = scanner.nextToken();
+            }
         } else {
-            errors.append(
-                "Parser error: \n" +
-                "    expected " + tokenNum + " but got " + current.getTokenNumber() + '\n' +
-                "    Lexeme: " + current.getLexeme() + '\n' +
-                "    Derivation: " + derivation.toString() + "\n");
+            synchronize();
+            if (tokenNumber() == tokenNum) {
+                currentToken = scanner.nextToken();
+                recovering = false;
+            }
+        }
+    }
+
+    // the lexeme of the current token, when its name doesn't already say it
+    private String found() {
+        String name = Scanner.tokenName(tokenNumber());
+        if (currentToken < 0 || name.charAt(0) == '\'') {
+            return "";
+        }
+        return " '" + lexeme() + "'";
+    }
+
+    // panic mode: drops tokens up to the next ';', END or EOF, the points
+    // where blockst() can pick the parse up again
+    private void synchronize() {
+        while (!isSynchronizing(tokenNumber())) {
+            currentToken = scanner.nextToken();
+        }
+    }
+
+    private static boolean isSynchronizing(int token) {
+        return token == Scanner.SEMICOLON_ID || token == Scanner.END_ID
+            || token == Scanner.END_OF_FILE_ID;
+    }
 
-            currentToken = scanner.getToken();
+    // records an error at the current token
+    private void error(String message) {
+        error(scanner.getLine(currentToken), scanner.getColumn(currentToken), message);
+    }
+
+    // records an error, giving up once maxErrors have been found
+    // positions are passed in since a lazy scanner reuses old token indices
+    private void error(int line, int column, String message) {
+        if (aborted) {
+            return;
+        }
+        errors.add(new Diagnostic(line, column, message));
+        if (errors.size() >= maxErrors) {
+            errors.add(new Diagnostic(line, column, "Too many errors, giving up"));
+            aborted = true;
             isSuccess = false;
         }
     }
@@ -130,50 +247,40 @@ public class RDParser {
     //
     // (1) program : blockst '.'
     private void program() {
-        derivation.append("1 ");
-        if (debug) {
-            verboseDerivation.append("Program Start ");
-        }
+        listener.enterRule(1);
+        listener.trace("Program Start");
 
-        codeGen.writeProlog();
         blockst();
-        match(currentToken, Scanner.END_OF_PROGRAM_ID);
-        codeGen.writePostlog();
+        match(Scanner.END_OF_PROGRAM_ID);
+
+        // nothing after the program to resynchronize on, drop the rest
+        while (recovering && tokenNumber() != Scanner.END_OF_FILE_ID) {
+            currentToken = scanner.nextToken();
+        }
+        ir.finish();
     }
 
     //
     // (2) statmt : decl | assstat | ifstat | blockst | loopst | iostat | <empty>
     private void statmt() {
-        derivation.append("2 ");
-        if (currentToken.getTokenNumber() == Scanner.TYPE_ID) {
-            if (debug) {
-                verboseDerivation.append("Decl ");
-            }
+        listener.enterRule(2);
+        if (tokenNumber() == Scanner.TYPE_ID) {
+            listener.trace("Decl");
             decl();
-        } else if (currentToken.getTokenNumber() == Scanner.IDENTIFIER_ID) {
-            if (debug) {
-                verboseDerivation.append("Assgn ");
-            }
+        } else if (tokenNumber() == Scanner.IDENTIFIER_ID) {
+            listener.trace("Assgn");
             assstat();
-        } else if (currentToken.getTokenNumber() == Scanner.IF_ID) {
-            if (debug) {
-                verboseDerivation.append("IfStat ");
-            }
+        } else if (tokenNumber() == Scanner.IF_ID) {
+            listener.trace("IfStat");
             ifstat();
-        } else if (currentToken.getTokenNumber() == Scanner.BEGIN_ID) {
-            if (debug) {
-                verboseDerivation.append("NewBlock ");
-            }
+        } else if (tokenNumber() == Scanner.BEGIN_ID) {
+            listener.trace("NewBlock");
             blockst();
-        } else if (currentToken.getTokenNumber() == Scanner.WHILE_ID) {
-            if (debug) {
-                verboseDerivation.append("WhileStat ");
-            }
+        } else if (tokenNumber() == Scanner.WHILE_ID) {
+            listener.trace("WhileStat");
             loopst();
-        } else if (currentToken.getTokenNumber() == Scanner.IO_ID) {
-            if (debug) {
-                verboseDerivation.append("IOStat ");
-            }
+        } else if (tokenNumber() == Scanner.IO_ID) {
+            listener.trace("IOStat");
             iostat();
         }
     }
@@ -181,19 +288,22 @@ public class RDParser {
     //
     // (3) decl : IDENTIFIER_ID LITERAL_ID
     private void decl() {
-        derivation.append("3 ");
-        if (currentToken.getTokenNumber() == Scanner.TYPE_ID) {
-            char type = currentToken.getLexeme().charAt(0);
-            match(currentToken, Scanner.TYPE_ID);
+        listener.enterRule(3);
+        if (tokenNumber() == Scanner.TYPE_ID) {
+            char type = scanner.firstChar(currentToken);
+            match(Scanner.TYPE_ID);
 
-            String name = currentToken.getLexeme();
-            match(currentToken, Scanner.IDENTIFIER_ID);
+            String name = lexeme();
+            int symbol = symbol();
+            int line   = scanner.getLine(currentToken);
+            int column = scanner.getColumn(currentToken);
+            match(Scanner.IDENTIFIER_ID);
 
             // if not already in Symbol table, add it
-            if (symbolTable.findCurrentScope(name) == null){
-                symbolTable.insert(new Variable(currentToken.getTokenNumber(), name, type));
+            if (symbolTable.findCurrentScope(symbol) == null){
+                symbolTable.insert(new Variable(tokenNumber(), name, symbol, type));
             } else {
-                errors.append("Token '" + name + "' already declared is this scope");
+                error(line, column, "Token '" + name + "' already declared is this scope");
                 isSuccess = false;
             }
         }
@@ -202,25 +312,32 @@ public class RDParser {
     //
     // (4) assstat : idref ASSIGNMENT_ID expression
     private void assstat() {
-        derivation.append("4 ");
-        Variable temp = symbolTable.findAllScopes(currentToken.getLexeme());
+        listener.enterRule(4);
+        Variable temp = symbolTable.findAllScopes(symbol());
+        String name = lexeme();
+        int line    = scanner.getLine(currentToken);
+        int column  = scanner.getColumn(currentToken);
 
         if (temp == null) {
-            errors.append("Variable '" + currentToken.getLexeme() + "' not declared");
+            error(line, column, "Variable '" + name + "' not declared");
+            isSuccess = false;
+            synchronize();
         } else {
             char idType   = temp.getType();
-            int idLoc     = temp.getOffset();
 
             idref();
-            match(currentToken, Scanner.ASSIGNMENT_ID);
+            match(Scanner.ASSIGNMENT_ID);
             expression();
 
             if (idType == exprRecord.getType()) {
-                codeGen.writeCode("# assgn statement");
-                codeGen.writeCode("lw $t0 " + exprRecord.getLocation() + "($fp)");
-                codeGen.writeCode("sw $t0 " + idLoc + "($fp)");
+                ir.add(Instruction.store(temp, exprRecord.getLocation()).comment("assgn statement"));
+                if (exprRecord.isConstant()) {
+                    constants.put(temp.getNumber(), exprRecord.getConstant());
+                } else {
+                    constants.remove(temp.getNumber());
+                }
             } else {
-                errors.append("Type mismatch for: " + currentToken.getLexeme());
+                error(line, column, "Type mismatch for: " + name);
                 isSuccess = false;
             }
         }
@@ -229,70 +346,88 @@ public class RDParser {
     //
     // (5) ifstat : IF_ID expression THEN_ID statmt
     private void ifstat() {
-        derivation.append("5 ");
-        if (currentToken.getTokenNumber() == Scanner.IF_ID) {
+        listener.enterRule(5);
+        if (tokenNumber() == Scanner.IF_ID) {
             // TODO: cogegen
-            match(currentToken, Scanner.IF_ID);
+            match(Scanner.IF_ID);
             expression();
 
             if (exprRecord.getType() != 'l') {
-                errors.append("Type mismatch for if statement");
+                error("Type mismatch for if statement");
                 isSuccess = false;
             }
 
-            String tempLabel = ExpressionRecord.generateLabel();
-            // load er
-            // gen next label
-            // beq $t0 label
-            // code gen label
-            codeGen.writeCode("# if statement");
-            codeGen.writeCode("lw $t0 " + exprRecord.getLocation() + "($fp)");
-            codeGen.writeCode("beq $t0 $zero " + tempLabel);
+            String tempLabel = ir.newLabel();
+            BasicBlock thenBlock  = ir.newBlock(null);
+            BasicBlock afterBlock = ir.newBlock(tempLabel);
+            boolean known = isKnown();
+            ir.add(condition(thenBlock, afterBlock).comment("if statement"));
 
-            match(currentToken, Scanner.THEN_ID);
+            // variables keep their known value after the if only when the
+            // then part leaves it alone
+            HashMap<Integer, Integer> before = new HashMap<Integer, Integer>(constants);
+            boolean skipped = known && exprRecord.getConstant() == 0;
+            boolean taken   = known && !skipped;
+
+            match(Scanner.THEN_ID);
+            ir.startBlock(thenBlock);
             statmt();
-            codeGen.writeCode(tempLabel + ": ");
+            ir.startBlock(afterBlock);
+
+            if (skipped) {
+                constants = before;
+            } else if (!taken) {
+                constants.entrySet().retainAll(before.entrySet());
+            }
         }
     }
 
     //
     // (6) loopst : WHILE_ID expression DO_ID statmt
     private void loopst() {
-        derivation.append("6 ");
-        if (currentToken.getTokenNumber() == Scanner.WHILE_ID) {
-            String topWhileLabel = ExpressionRecord.generateLabel();
-            String botWhileLabel = ExpressionRecord.generateLabel();
-
-            match(currentToken, Scanner.WHILE_ID);
-            codeGen.writeCode("# while statement");
-            codeGen.writeCode(topWhileLabel + ": ");
+        listener.enterRule(6);
+        if (tokenNumber() == Scanner.WHILE_ID) {
+            String topWhileLabel = ir.newLabel();
+            String botWhileLabel = ir.newLabel();
+
+            BasicBlock testBlock = ir.newBlock(topWhileLabel);
+            BasicBlock bodyBlock = ir.newBlock(null);
+            BasicBlock exitBlock = ir.newBlock(botWhileLabel);
+            testBlock.setComment("while statement");
+
+            // the body may change any variable before the test runs again
+            constants.clear();
+
+            match(Scanner.WHILE_ID);
+            ir.startBlock(testBlock);
             expression();
-            match(currentToken, Scanner.DO_ID);
+            match(Scanner.DO_ID);
 
             if (exprRecord.getType() != 'l') {
-                errors.append("Type mismatch in while-loop");
+                error("Type mismatch in while-loop");
                 this.isSuccess = false;
             }
-            codeGen.writeCode("lw $t0 " + exprRecord.getLocation() + "($fp)");
-            codeGen.writeCode("beq $t0 $zero " + botWhileLabel);
+            ir.add(condition(bodyBlock, exitBlock));
+            ir.startBlock(bodyBlock);
             statmt();
-            codeGen.writeCode("j " + topWhileLabel);
-            codeGen.writeCode(botWhileLabel + ": ");
+            ir.add(Instruction.jump(testBlock));
+            ir.startBlock(exitBlock);
+            constants.clear();
         }
     }
 
     //
     // (7) blockst : BEGIN_ID { statmt SEMICOLON_ID } END_ID
     private void blockst() {
-        derivation.append("7 ");
-        if (currentToken.getTokenNumber() == Scanner.BEGIN_ID) {
-            match(currentToken, Scanner.BEGIN_ID);
+        listener.enterRule(7);
+        if (tokenNumber() == Scanner.BEGIN_ID) {
+            match(Scanner.BEGIN_ID);
             symbolTable.enterNewScope();
-            while (currentToken.getTokenNumber() != Scanner.END_ID) {
+            while (tokenNumber() != Scanner.END_ID && tokenNumber() != Scanner.END_OF_FILE_ID) {
                 statmt();
-                match(currentToken, Scanner.SEMICOLON_ID);
+                match(Scanner.SEMICOLON_ID);
             }
-            match(currentToken, Scanner.END_ID);
+            match(Scanner.END_ID);
             symbolTable.leaveCurrentScope();
         }
     }
@@ -301,305 +436,371 @@ public class RDParser {
     // (8) iostat : IO_ID OPEN_PARENS_ID idref CLOSING_PARENS_ID |
     //              IO_ID OPEN_PARENS_ID expression CLOSING_PARENS_ID
     private void iostat() {
-        derivation.append("8 ");
-        if (currentToken.getTokenNumber() == Scanner.IO_ID) {
-            String str = currentToken.getLexeme();
+        listener.enterRule(8);
+        if (tokenNumber() == Scanner.IO_ID) {
+            int io = symbol();
 
-            match(currentToken, Scanner.IO_ID);
-            match(currentToken, Scanner.OPEN_PARENS_ID);
+            match(Scanner.IO_ID);
+            match(Scanner.OPEN_PARENS_ID);
 
-            if (str.equals("read")) {
+            if (io == SymbolPool.READ) {
                 idref();
             } else {
                 expression();
             }
 
-            if (str.equals("write")) {
+            if (io == SymbolPool.WRITE) {
                 // writing an int
 
-                if (debug) {
-                    verboseDerivation.append("Write ");
-                }
+                listener.trace("Write");
                 if (exprRecord.getType() == 'i') {
-                    codeGen.writeCode("# write statement integer");
-                    codeGen.writeCode("lw $a0 " + exprRecord.getLocation() + "($fp)");
-                    codeGen.writeCode("li $v0 1");
-                    codeGen.writeCode("syscall\n");
+                    ir.add(Instruction.write(exprRecord.getLocation(), 'i')
+                        .comment("write statement integer"));
                 } else if (exprRecord.getType() == 'l') {
-                    // writing a logical (bool)
-                    // True and False labels should already be declared
-                    codeGen.writeCode("# write statement logical");
-                    codeGen.writeCode("lw $a0 " + exprRecord.getLocation());
-                    codeGen.writeCode("li $v0 1");
-                    codeGen.writeCode("syscall\n");
+                    // writing a logical (bool), as 1 or 0
+                    ir.add(Instruction.write(exprRecord.getLocation(), 'l')
+                        .comment("write statement logical"));
                 } else if (exprRecord.getType() == 's') {
                     // writing a string
-                    codeGen.writeCode("# write statement string");
-                    codeGen.writeCode("la $a0 " + exprRecord.getStrLocation());
-                    codeGen.writeCode("li $v0 4");
-                    codeGen.writeCode("syscall\n");
+                    ir.add(Instruction.writeString(exprRecord.getStrLocation())
+                        .comment("write statement string"));
                 }
-            } else if (str.equals("writeln")) {
+            } else if (io == SymbolPool.WRITELN) {
                 // write, but with '\n'at the end
                 // "endl" should already be declared in postlog
                 //
-                if (debug) {
-                    verboseDerivation.append("Writeln ");
-                }
+                listener.trace("Writeln");
                 if (exprRecord.getType() == 'i') {
-                    codeGen.writeCode("# writeln statement integer");
-                    codeGen.writeCode("lw $a0 " + exprRecord.getLocation() + "($fp)");
-                    codeGen.writeCode("li $v0 1");
-                    codeGen.writeCode("syscall\n");
-                    codeGen.writeCode("la $a0 endl");
-                    codeGen.writeCode("li $v0 4");
-                    codeGen.writeCode("syscall\n");
+                    ir.add(Instruction.write(exprRecord.getLocation(), 'i')
+                        .comment("writeln statement integer"));
+                    ir.add(Instruction.writeNewline());
                 } else if (exprRecord.getType() == 'l') {
-                    // True and False labels should already be declared
-
-                    codeGen.writeCode("# writeln statement logical");
-                    codeGen.writeCode("lw $a0 " + exprRecord.getLocation() + "($fp)");
-                    codeGen.writeCode("li $v0 1");
-                    codeGen.writeCode("syscall\n");
-                    codeGen.writeCode("la $a0 endl");
-                    codeGen.writeCode("li $v0 4");
-                    codeGen.writeCode("syscall\n");
-
+                    ir.add(Instruction.write(exprRecord.getLocation(), 'l')
+                        .comment("writeln statement logical"));
+                    ir.add(Instruction.writeNewline());
                 } else if (exprRecord.getType() == 's') {
-
-                    codeGen.writeCode("# writeln statement string");
-                    codeGen.writeCode("la $a0 " + exprRecord.getStrLocation());
-                    codeGen.writeCode("li $v0 4");
-                    codeGen.writeCode("syscall\n");
-                    codeGen.writeCode("la $a0 endl");
-                    codeGen.writeCode("li $v0 4");
-                    codeGen.writeCode("syscall\n");
-
+                    ir.add(Instruction.writeString(exprRecord.getStrLocation())
+                        .comment("writeln statement string"));
+                    ir.add(Instruction.writeNewline());
                 }
-            } else if (str.equals("read")) {
+            } else if (io == SymbolPool.READ) {
                 if (exprRecord.getType() == 'i') {
-                    if (debug) {
-                        verboseDerivation.append("Read ");
-                    }
+                    listener.trace("Read");
 
-                    codeGen.writeCode("# read statement");
-                    codeGen.writeCode("li $v0 5");
-                    codeGen.writeCode("syscall");
-                    codeGen.writeCode("sw $v0 " + exprRecord.getLocation() + "($fp)");
+                    if (exprRecord.getVariable() != null) {
+                        ir.add(Instruction.read(exprRecord.getVariable()).comment("read statement"));
+                        constants.remove(exprRecord.getVariable().getNumber());
+                    }
                 } else {
-                    errors.append("Read expected an int, but got " + exprRecord.getType());
+                    error("Read expected an int, but got " + exprRecord.getType());
                     isSuccess = false;
                 }
             }
 
-            match(currentToken, Scanner.CLOSING_PARENS_ID);
+            match(Scanner.CLOSING_PARENS_ID);
         }
     }
 
     //
-    // (9) expression : term { ADD_OP_ID term }
+    // (9)  expression : term { ADD_OP_ID term }
+    // (10) term       : relfactor { MULT_OP_ID relfactor }
+    // (11) relfactor  : factor [ RELATIONAL_OP_ID factor ]
+    // (12) factor     : idref | LITERAL_ID | BOOLEAN_NOT_ID factor |
+    //                   OPEN_PARENS_ID expression CLOSING_PARENS_ID
+    //
+    // Parsed without recursion: pending operators, '!' and '(' wait on an
+    // explicit stack together with the record of their left operand. An
+    // operator is reduced as soon as the rules above would finish it, so
+    // code comes out in the same order as from one function per rule:
+    // a relational operator once its right factor is done, '*' before the
+    // next '*' or any '+', and '+' before the next '+'.
     private void expression() {
-        derivation.append("9 ");
-        term();
-        while (currentToken.getTokenNumber() == Scanner.ADD_OP_ID) {
-            ExpressionRecord left = new ExpressionRecord();
-            // set left to be a copy of exprRecord
-            left.setType(exprRecord.getType());
-            left.setLocation(exprRecord.getLocation());
-
-            char op = currentToken.getLexeme().charAt(0);
-
-            match(currentToken, Scanner.ADD_OP_ID);
-            term();
+        int bottom = opTop;
+
+        listener.enterRule(9);
+        listener.enterRule(10);
+        listener.enterRule(11);
+        listener.enterRule(12);
+
+        while (true) {
+            // prefix of a factor
+            int token = tokenNumber();
+            while (token == Scanner.BOOLEAN_NOT_ID || token == Scanner.OPEN_PARENS_ID) {
+                push(token, 0);
+                match(token);
+                if (token == Scanner.OPEN_PARENS_ID) {
+                    listener.enterRule(9);
+                    listener.enterRule(10);
+                    listener.enterRule(11);
+                }
+                listener.enterRule(12);
+                token = tokenNumber();
+            }
 
-            if (left.getType() == exprRecord.getType()) {
-                String operation;
+            operand();
 
-                if (op == '+') {
-                    operation = "add";
-                } else if (op == '-') {
-                    operation = "sub";
-                } else {
-                    operation = "bor";
+            // a factor is done, look at what follows it
+            while (true) {
+                boolean afterRelation = false;
+                while (opTop > bottom && opKind[opTop - 1] == Scanner.BOOLEAN_NOT_ID) {
+                    reduce();
+                }
+                if (opTop > bottom && opKind[opTop - 1] == Scanner.RELATIONAL_OP_ID) {
+                    reduce();
+                    afterRelation = true;
                 }
 
-                codeGen.writeCode("# expression");
-                codeGen.writeCode("lw $t0 " + left.getLocation() + "($fp)");
-                codeGen.writeCode("lw $t1 " + exprRecord.getLocation() + "($fp)");
-                codeGen.writeCode(operation + " $t0 $t0 $t1");
-                codeGen.writeCode("sw $t0 " + currentOffset + "($fp)");
-                exprRecord.setType('i');
-                exprRecord.setLocation(currentOffset);
-                currentOffset -= SymbolTable.VARIABLE_SIZE;
+                token = tokenNumber();
+                if (token == Scanner.RELATIONAL_OP_ID && !afterRelation) {
+                    push(token, symbol());
+                    match(token);
+                    listener.enterRule(12);
+                    break;
+                } else if (token == Scanner.MULT_OP_ID) {
+                    reduceWhile(bottom, Scanner.MULT_OP_ID);
+                    push(token, symbol());
+                    match(token);
+                    listener.enterRule(11);
+                    listener.enterRule(12);
+                    break;
+                } else if (token == Scanner.ADD_OP_ID) {
+                    reduceWhile(bottom, Scanner.ADD_OP_ID);
+                    push(token, scanner.firstChar(currentToken));
+                    match(token);
+                    listener.enterRule(10);
+                    listener.enterRule(11);
+                    listener.enterRule(12);
+                    break;
+                }
 
-            } else {
-                errors.append("Type mismatch");
-                isSuccess = false;
+                // end of an expression, either the whole one or one in parens
+                reduceWhile(bottom, Scanner.ADD_OP_ID);
+                if (opTop == bottom) {
+                    return;
+                }
+                opTop--; // the '('
+                match(Scanner.CLOSING_PARENS_ID);
             }
         }
     }
 
-    //
-    // (10) term : relfactor { MULT_OP_ID relfactor }
-    private void term() {
-        derivation.append("10 ");
-        relfactor();
-        while (currentToken.getTokenNumber() == Scanner.MULT_OP_ID) {
-            ExpressionRecord left = new ExpressionRecord();
-            // set left to be a copy of exprRecord
-            left.setType(exprRecord.getType());
-            left.setLocation(exprRecord.getLocation());
-            String op = currentToken.getLexeme();
-
-            match(currentToken, Scanner.MULT_OP_ID);
-            relfactor();
-
-            boolean isRem = false;
-            if (left.getType() == exprRecord.getType()) {
-                String operation;
-
-                if (op.equals("*")) {
-                    operation = "mult";
-                } else if (op.equals("/") || op.equals("rem") || op.equals("div")) {
-                    operation = "div";
-
-                    if (op.equals("rem")) {
-                        isRem = true;
-                    }
-                } else {
-                    operation = "and";
-                }
+    // idref or LITERAL_ID part of factor, anything else leaves exprRecord as is
+    private void operand() {
+        if (tokenNumber() == Scanner.IDENTIFIER_ID) {
+            idref();
+        // factor -> LITERAL
+        } else if (tokenNumber() == Scanner.LITERAL_ID) {
+            if (getType(currentToken) == 'i') { // integer literal
+                String str = lexeme();
+                int value  = ir.newValue('i');
 
-                codeGen.writeCode("# term");
-                codeGen.writeCode("lw $t0 " + left.getLocation() + "($fp)");
-                codeGen.writeCode("lw $t1 " + exprRecord.getLocation() + "($fp)");
-                codeGen.writeCode(operation + " $t0 $t1");
-                if (isRem)
-                    codeGen.writeCode("mfhi $t0");
-                else
-                    codeGen.writeCode("mflo $t0");
-                codeGen.writeCode("sw $t0 " + currentOffset + "($fp)");
+                Instruction literal = Instruction.constant(value, 'i', integerValue(str), str);
+                ir.add(literal.comment("factor -> literal"));
                 exprRecord.setType('i');
-                exprRecord.setLocation(currentOffset);
-                currentOffset -= 4;
+                exprRecord.setLocation(value);
+                exprRecord.setConstant(literal.getValue());
+            } else if (getType(currentToken) == 'l') { // logical literal
+                int literal = symbol();
+                int value   = ir.newValue('l');
 
-            } else {
-                errors.append("Type mismatch");
+                // 1 or 0 based on what the lexeme was
+                ir.add(Instruction.constant(value, 'l', (literal == SymbolPool.TRUE ? 1 : 0), null)
+                    .comment("factor -> literal"));
+                exprRecord.setType('l');
+                exprRecord.setLocation(value);
+                exprRecord.setConstant(literal == SymbolPool.TRUE ? 1 : 0);
+            } else { // String literal
+                String tempLocation = ir.newLabel();
+                // strip surrounding " characters
+                String lexeme = lexeme();
+                lexeme = lexeme.substring(1, lexeme.length() - 1);
+                exprRecord.setType('s');
+                exprRecord.setLocation(tempLocation);
+                ir.add(Instruction.string(tempLocation, lexeme).comment("factor -> literal"));
             }
+
+            match(Scanner.LITERAL_ID);
         }
     }
 
-    //
-    // (11) relfactor : factor [ RELATIONAL_OP_ID factor ]
-    private void relfactor() {
-        derivation.append("11 ");
-        factor();
-        if (currentToken.getTokenNumber() == Scanner.RELATIONAL_OP_ID) {
-            String operator = currentToken.getLexeme();
-            ExpressionRecord left = new ExpressionRecord();
-            // set left to be a copy of exprRecord
-            left.setType(exprRecord.getType());
-            left.setLocation(exprRecord.getLocation());
-
-            match(currentToken, Scanner.RELATIONAL_OP_ID);
-            factor();
-
-            if (exprRecord.getType() == 'i') {
-
-                codeGen.writeCode("# relfactor");
-                codeGen.writeCode("lw $t0 " + left.getLocation() + "($fp)");
-                codeGen.writeCode("lw $t1 " + exprRecord.getLocation() + "($fp)");
-
-                if (operator.equals("<")) {
-                    codeGen.writeCode("slt $t0 $t0 $t1");
-                } else if (operator.equals(">")) {
-                    codeGen.writeCode("sgt $t0 $t0 $t1");
-                } else if (operator.equals("=")) {
-                    codeGen.writeCode("seq $t0 $t1 $t0");
-                } else { // operator equals "!="
-                    codeGen.writeCode("sne $t0 $t1 $t0");
-                }
-
-                codeGen.writeCode("sw $t0 " + currentOffset + "($fp)");
-                exprRecord.setType('l');
-                exprRecord.setLocation(currentOffset);
-                currentOffset -= SymbolTable.VARIABLE_SIZE;
+    // value of an integer literal, kept to 32 bits like the machine does
+    private int integerValue(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (!Character.isDigit(literal.charAt(i))) {
+                error("Invalid integer literal '" + literal + "'");
+                isSuccess = false;
+                return 0;
             }
         }
+        return new BigInteger(literal).intValue();
     }
 
-    //
-    // (12) factor : idref | LITERAL_ID | BOOLEAN_NOT_ID factor |
-    //               OPEN_PARENS_ID expression CLOSING_PARENS_ID
-    private void factor() {
-        derivation.append("12 ");
-        if (currentToken.getTokenNumber() == Scanner.IDENTIFIER_ID) {
-            idref();
-        // factor -> LITERAL
-        } else if (currentToken.getTokenNumber() == Scanner.LITERAL_ID) {
+    // puts an operator on the stack with a copy of exprRecord as its left operand
+    private void push(int kind, int operator) {
+        if (opTop == opKind.length) {
+            int newSize = opTop * 2;
+            opKind       = Arrays.copyOf(opKind, newSize);
+            opOperator   = Arrays.copyOf(opOperator, newSize);
+            leftType     = Arrays.copyOf(leftType, newSize);
+            leftLocation = Arrays.copyOf(leftLocation, newSize);
+            leftIsConstant = Arrays.copyOf(leftIsConstant, newSize);
+            leftConstant = Arrays.copyOf(leftConstant, newSize);
+        }
+        opKind[opTop]       = kind;
+        opOperator[opTop]   = operator;
+        leftType[opTop]     = exprRecord.getType();
+        leftLocation[opTop] = exprRecord.getLocation();
+        leftIsConstant[opTop] = exprRecord.isConstant();
+        leftConstant[opTop] = exprRecord.getConstant();
+        opTop++;
+    }
 
-            codeGen.writeCode("# factor -> literal");
-            if (getType(currentToken) == 'i') { // integer literal
-                String str = currentToken.getLexeme();
+    // reduces multiplying operators, and adding ones too when kind is
+    // ADD_OP_ID, down to the first '(' above bottom
+    private void reduceWhile(int bottom, int kind) {
+        while (opTop > bottom && (opKind[opTop - 1] == Scanner.MULT_OP_ID
+                || (kind == Scanner.ADD_OP_ID && opKind[opTop - 1] == Scanner.ADD_OP_ID))) {
+            reduce();
+        }
+    }
 
-                exprRecord.setType('i');
-                exprRecord.setLocation(currentOffset);
+    // pops the operator on top of the stack and generates its code, with
+    // exprRecord as the right operand and the result
+    private void reduce() {
+        opTop--;
+        int  kind     = opKind[opTop];
+        int  op       = opOperator[opTop];
+        char type     = leftType[opTop];
 
-                currentOffset -= SymbolTable.VARIABLE_SIZE;
+        if (kind == Scanner.ADD_OP_ID) {
+            if (type == exprRecord.getType()) {
+                int  operation;
+                char resultType = 'i';
 
-                codeGen.writeCode("li $t0 " + str);
-                codeGen.writeCode("sw $t0 " + exprRecord.getLocation() + "($fp)");
-            } else if (getType(currentToken) == 'l') { // logical literal
-                String str = currentToken.getLexeme();
+                if (op == '+') {
+                    operation = Instruction.ADD;
+                } else if (op == '-') {
+                    operation = Instruction.SUB;
+                } else {
+                    operation  = Instruction.OR;
+                    resultType = type; // or of two logicals is logical
+                }
 
-                exprRecord.setType('l');
-                exprRecord.setLocation(currentOffset);
+                binary(operation, resultType, opTop, "expression");
+            } else {
+                error("Type mismatch");
+                isSuccess = false;
+            }
+        } else if (kind == Scanner.MULT_OP_ID) {
+            if (type == exprRecord.getType()) {
+                int  operation;
+                char resultType = 'i';
+
+                if (op == SymbolPool.STAR) {
+                    operation = Instruction.MUL;
+                } else if (op == SymbolPool.SLASH || op == SymbolPool.DIV) {
+                    operation = Instruction.DIV;
+                } else if (op == SymbolPool.REM) {
+                    operation = Instruction.REM;
+                } else {
+                    operation  = Instruction.AND;
+                    resultType = type; // and of two logicals is logical
+                }
 
-                currentOffset -= SymbolTable.VARIABLE_SIZE;
+                binary(operation, resultType, opTop, "term");
+            } else {
+                error("Type mismatch");
+            }
+        } else if (kind == Scanner.RELATIONAL_OP_ID) {
+            if (exprRecord.getType() == 'i') {
+                int operation;
+
+                if (op == SymbolPool.LESS) {
+                    operation = Instruction.LESS;
+                } else if (op == SymbolPool.GREATER) {
+                    operation = Instruction.GREATER;
+                } else if (op == SymbolPool.EQUAL) {
+                    operation = Instruction.EQUAL;
+                } else { // operator equals "!="
+                    operation = Instruction.NOT_EQUAL;
+                }
 
-                // 1 or 0 based on what the lexeme was
-                codeGen.writeCode("li $t0 " + (str.equals("true") ? 1 : 0));
-                codeGen.writeCode("sw $t0 " + exprRecord.getLocation() + "($fp)");
-            } else { // String literal
-                String tempLocation = ExpressionRecord.generateLabel();
-                // strip surrounding " characters
-                String lexeme = currentToken.getLexeme().substring(1, currentToken.getLexeme().length() - 1);
-                exprRecord.setType('s');
-                exprRecord.setLocation(tempLocation);
-                codeGen.writeCode(".data ");
-                codeGen.writeCode(tempLocation + ": .asciiz \"" + lexeme + "\"");
-                codeGen.writeCode(".text ");
+                binary(operation, 'l', opTop, "relfactor");
             }
+        } else { // BOOLEAN_NOT_ID
+            char operandType = exprRecord.getType();
+            int  result      = ir.newValue(operandType);
+            if (isKnown()) {
+                int value = Instruction.evaluate(Instruction.NOT, operandType, exprRecord.getConstant(), 0);
+                ir.add(Instruction.constant(result, operandType, value, null).comment("boolean not"));
+                exprRecord.setLocation(result);
+                exprRecord.setConstant(value);
+            } else {
+                ir.add(new Instruction(Instruction.NOT, result, exprRecord.getLocation(), Instruction.NONE,
+                    operandType).comment("boolean not"));
+                exprRecord.setLocation(result);
+            }
+        }
+    }
 
-            match(currentToken, Scanner.LITERAL_ID);
-        } else if (currentToken.getTokenNumber() == Scanner.BOOLEAN_NOT_ID) {
-            match(currentToken, Scanner.BOOLEAN_NOT_ID);
-            factor();
-
-            codeGen.writeCode("# boolean not");
-            codeGen.writeCode("lw $t0 " + exprRecord.getLocation() + "($fp)");
-            codeGen.writeCode("not $t0 $t0");
-            codeGen.writeCode("sw $t0 " + exprRecord.getLocation() + "($fp)");
-        } else if (currentToken.getTokenNumber() == Scanner.OPEN_PARENS_ID) {
-            match(currentToken, Scanner.OPEN_PARENS_ID);
-            expression();
-            match(currentToken, Scanner.CLOSING_PARENS_ID);
+    // adds the left operand at index top of the operator stack operation
+    // exprRecord, making exprRecord the result; when optimizing, operands
+    // known while compiling are folded into a constant
+    private void binary(int operation, char resultType, int top, String comment) {
+        int result = ir.newValue(resultType);
+        if (optimization > 0 && leftIsConstant[top] && exprRecord.isConstant()
+                && Instruction.canEvaluate(operation, exprRecord.getConstant())) {
+            int value = Instruction.evaluate(operation, resultType, leftConstant[top],
+                exprRecord.getConstant());
+            ir.add(Instruction.constant(result, resultType, value, null).comment(comment));
+            exprRecord.setType(resultType);
+            exprRecord.setLocation(result);
+            exprRecord.setConstant(value);
+        } else {
+            ir.add(new Instruction(operation, result, leftLocation[top], exprRecord.getLocation(),
+                resultType).comment(comment));
+            exprRecord.setType(resultType);
+            exprRecord.setLocation(result);
         }
     }
 
+    // true when optimizing and the value of exprRecord is known
+    private boolean isKnown() {
+        return optimization > 0 && exprRecord.isConstant();
+    }
+
+    // the end of a block testing exprRecord, a jump when its value is known
+    private Instruction condition(BasicBlock ifTrue, BasicBlock ifFalse) {
+        if (isKnown()) {
+            return Instruction.jump((exprRecord.getConstant() != 0) ? ifTrue : ifFalse);
+        }
+        return Instruction.branch(exprRecord.getLocation(), ifTrue, ifFalse);
+    }
+
     //
     // (13) idref : IDENTIFIER_ID
     private void idref() {
-        derivation.append("13 ");
-        if (currentToken.getTokenNumber() == Scanner.IDENTIFIER_ID) {
-            Variable temp = symbolTable.findAllScopes(currentToken.getLexeme());
+        listener.enterRule(13);
+        if (tokenNumber() == Scanner.IDENTIFIER_ID) {
+            Variable temp = symbolTable.findAllScopes(symbol());
             if (temp == null) {
-                errors.append("Token error: '" + currentToken.getLexeme() + "' not found.\n");
+                error("Token error: '" + lexeme() + "' not found");
                 isSuccess = false;
+            } else {
+                int value = ir.newValue(temp.getType());
+                Integer known = constants.get(temp.getNumber());
+                exprRecord.setType(temp.getType());
+                exprRecord.setLocation(value);
+                if (optimization > 0 && known != null) {
+                    // propagated from the last assignment
+                    ir.add(Instruction.constant(value, temp.getType(), known, null));
+                    exprRecord.setConstant(known);
+                } else {
+                    ir.add(Instruction.load(value, temp));
+                }
+                exprRecord.setVariable(temp);
             }
-            exprRecord.setType(temp.getType());
-            exprRecord.setLocation(temp.getOffset());
-            match(currentToken, Scanner.IDENTIFIER_ID);
+            match(Scanner.IDENTIFIER_ID);
         }
     }
 }
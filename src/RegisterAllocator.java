@@ -0,0 +1,194 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * RegisterAllocator.java
+ *
+ * Linear scan register allocation. Every virtual register gets one live
+ * interval, from the first point it may be written to the last point it
+ * may be read, found from the Liveness of the blocks. Intervals are
+ * handed the machine registers $t0-$t9 and $s0-$s7 in order of their
+ * start; when all of them are taken, the interval that ends last is
+ * spilled to the frame instead. Spilled intervals are then given frame
+ * slots the same way, so ones that do not overlap share a slot and the
+ * frame only grows with the number of spilled values live at once.
+ *
+ * Instruction k of the layout reads its operands at point 2k and writes
+ * its result at 2k + 1, so a result can take the register of an operand
+ * that dies in the same instruction.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+
+public class RegisterAllocator {
+    public static final String[] REGISTERS = {
+        "$t0", "$t1", "$t2", "$t3", "$t4", "$t5", "$t6", "$t7", "$t8", "$t9",
+        "$s0", "$s1", "$s2", "$s3", "$s4", "$s5", "$s6", "$s7"
+    };
+
+    // registers spilled values pass through, never allocated
+    public static final String SCRATCH_LEFT  = "$v1";
+    public static final String SCRATCH_RIGHT = "$a1";
+
+    private static final int NONE = -1;
+
+    private int[] start;     // first point of each virtual register's interval
+    private int[] end;       // last point, NONE for registers that never occur
+    private int[] register;  // index into REGISTERS, NONE when spilled
+    private int[] slot;      // frame offset of spilled registers
+    private ArrayList<Integer> spilled;
+    private int   slotCount; // frame slots used by spilled registers
+
+    public RegisterAllocator(IrProgram program, Liveness liveness) {
+        int count = program.getValueCount();
+        start    = new int[count];
+        end      = new int[count];
+        register = new int[count];
+        slot     = new int[count];
+        spilled  = new ArrayList<Integer>();
+        for (int v = 0; v < count; v++) {
+            start[v]    = Integer.MAX_VALUE;
+            end[v]      = NONE;
+            register[v] = NONE;
+        }
+
+        buildIntervals(program, liveness);
+        allocate(count);
+        assignSlots();
+    }
+
+    private void buildIntervals(IrProgram program, Liveness liveness) {
+        ArrayList<BasicBlock> blocks = program.getBlocks();
+        int point = 0;
+        for (int b = 0; b < blocks.size(); b++) {
+            int first = point;
+            for (Instruction i : blocks.get(b).getInstructions()) {
+                extend(i.getLeft(), point);
+                extend(i.getRight(), point);
+                extend(i.getDest(), point + 1);
+                point += 2;
+            }
+            BitSet in = liveness.getLiveIn(b);
+            for (int v = in.nextSetBit(0); v >= 0; v = in.nextSetBit(v + 1)) {
+                extend(v, first);
+            }
+            BitSet out = liveness.getLiveOut(b);
+            for (int v = out.nextSetBit(0); v >= 0; v = out.nextSetBit(v + 1)) {
+                extend(v, point);
+            }
+        }
+    }
+
+    private void extend(int value, int point) {
+        if (value != Instruction.NONE) {
+            start[value] = Math.min(start[value], point);
+            end[value]   = Math.max(end[value], point);
+        }
+    }
+
+    private void allocate(int count) {
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int v = 0; v < count; v++) {
+            if (end[v] != NONE) {
+                order.add(v);
+            }
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(start[a], start[b]);
+            }
+        });
+
+        boolean[] free = new boolean[REGISTERS.length];
+        Arrays.fill(free, true);
+        ArrayList<Integer> active = new ArrayList<Integer>(); // by increasing end
+
+        for (int v : order) {
+            // registers of intervals that ended before this one starts are free again
+            while (!active.isEmpty() && end[active.get(0)] < start[v]) {
+                free[register[active.remove(0)]] = true;
+            }
+
+            int r = 0;
+            while (r < free.length && !free[r]) {
+                r++;
+            }
+            if (r < free.length) {
+                free[r]     = false;
+                register[v] = r;
+                insert(active, v);
+                continue;
+            }
+
+            int last = active.get(active.size() - 1);
+            if (end[last] > end[v]) {
+                register[v]    = register[last];
+                register[last] = NONE;
+                spill(last);
+                active.remove(active.size() - 1);
+                insert(active, v);
+            } else {
+                spill(v);
+            }
+        }
+    }
+
+    // linear scan again over the spilled intervals, with an unbounded
+    // supply of frame slots, reusing the lowest free one
+    private void assignSlots() {
+        Collections.sort(spilled, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(start[a], start[b]);
+            }
+        });
+
+        ArrayList<Integer> active    = new ArrayList<Integer>(); // by increasing end
+        ArrayList<Integer> freeSlots = new ArrayList<Integer>(); // slot numbers, increasing
+        for (int v : spilled) {
+            while (!active.isEmpty() && end[active.get(0)] < start[v]) {
+                int n = Collections.binarySearch(freeSlots, slot[active.get(0)]);
+                freeSlots.add(-n - 1, slot[active.remove(0)]);
+            }
+            if (freeSlots.isEmpty()) {
+                slot[v] = slotCount++;
+            } else {
+                slot[v] = freeSlots.remove(0);
+            }
+            insert(active, v);
+        }
+    }
+
+    private void insert(ArrayList<Integer> active, int value) {
+        int n = active.size();
+        while (n > 0 && end[active.get(n - 1)] > end[value]) {
+            n--;
+        }
+        active.add(n, value);
+    }
+
+    private void spill(int value) {
+        spilled.add(value);
+    }
+
+    public boolean isSpilled(int value) {
+        return register[value] == NONE;
+    }
+
+    // machine register holding value, only when it is not spilled
+    public String getRegister(int value) {
+        return REGISTERS[register[value]];
+    }
+
+    // frame offset holding value, only when it is spilled
+    public int getSlot(int value) {
+        return -slot[value] * SymbolTable.VARIABLE_SIZE;
+    }
+
+    // words of frame the spilled registers take
+    public int getSlotCount() {
+        return slotCount;
+    }
+}
@@ -8,12 +8,19 @@
 
 
 import java.io.BufferedReader;  // allows for use as a read-by-line buffer
-import java.io.FileReader;      // BufferedReader's constructor takes in a FileReader object
-import java.io.PrintWriter;     // allows writing out to listing file
 import java.io.IOException;     // allows for throwing IOExcption
-import java.lang.StringBuilder; // buffer for error messages to be written at the end
-import java.util.HashSet;       // allows for O(1) keyword lookup
-import java.util.ArrayList;     // storage for tokens 
+import java.io.PrintStream;     // tokens go to the compilation's output
+import java.nio.ByteBuffer;     // source bytes, either mapped or a reused window
+import java.nio.channels.FileChannel; // maps the source file
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;     // error messages, written at the end
+import java.util.Arrays;        // for filling the keyword table
+import java.util.List;
+import java.util.concurrent.Callable;      // one parallel chunk
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;  // workers for parallel scanning
+import java.util.concurrent.Future;
 
 public class Scanner {
     public static final char EOL = '$';
@@ -27,7 +34,7 @@ public class Scanner {
     public static final int IDENTIFIER_ID     = 1;
     public static final int LITERAL_ID        = 2;  // any literal string, int, etc.
     public static final int TYPE_ID           = 3;  // STRING, INTEGER, keywords etc.
-    public static final int ADD_OP_ID         = 4;  // '+' 0R '-'
+    public static final int ADD_OP_ID         = 4;  // '+', '-' or OR
     public static final int MULT_OP_ID        = 5;  // '*', '/', DIV, REM, ADD
     public static final int RELATIONAL_OP_ID  = 6;  // '=', '!=', '<', '>'
     public static final int BEGIN_ID          = 7;  // BEGIN
@@ -43,247 +50,901 @@ public class Scanner {
     public static final int BOOLEAN_NOT_ID    = 17; // '!' 
     public static final int END_OF_PROGRAM_ID = 18; // '.'
     public static final int ASSIGNMENT_ID     = 19; // ':='
+    public static final int END_OF_FILE_ID    = 20; // no more tokens
+
+    // readable names of the token numbers above, for error messages
+    private static final String[] TOKEN_NAMES = {
+        "whitespace", "identifier", "literal", "type", "'+' or '-'",
+        "multiplying operator", "relational operator", "BEGIN", "END", "IF",
+        "THEN", "WHILE", "DO", "READ, WRITE or WRITELN", "'('", "')'", "';'",
+        "'!'", "'.'", "':='", "end of file"
+    };
+
+    // character classes, one entry per byte value
+    private static final byte OTHER  = 0;
+    private static final byte SPACE  = 1;
+    private static final byte LETTER = 2;
+    private static final byte DIGIT  = 3;
+
+    private static final byte[] CHAR_CLASS = new byte[256];
+    private static final byte[] LOWER      = new byte[256];
+    private static final byte[] OPERATOR   = new byte[256]; // single character tokens, see checkToken()
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            LOWER[b] = (byte) b;
+        }
+        // only ASCII is classified, every other byte is an invalid character
+        for (int b = 0; b < 128; b++) {
+            if (Character.isWhitespace((char) b)) {
+                CHAR_CLASS[b] = SPACE;
+            } else if (Character.isLetter((char) b)) {
+                CHAR_CLASS[b] = LETTER;
+                LOWER[b] = (byte) Character.toLowerCase((char) b);
+            } else if (Character.isDigit((char) b)) {
+                CHAR_CLASS[b] = DIGIT;
+            }
+        }
+
+        OPERATOR['+'] = ADD_OP_ID;
+        OPERATOR['-'] = ADD_OP_ID;
+        OPERATOR['*'] = MULT_OP_ID;
+        OPERATOR['/'] = MULT_OP_ID;
+        OPERATOR['='] = RELATIONAL_OP_ID;
+        OPERATOR['<'] = RELATIONAL_OP_ID;
+        OPERATOR['>'] = RELATIONAL_OP_ID;
+        OPERATOR['('] = OPEN_PARENS_ID;
+        OPERATOR[')'] = CLOSING_PARENS_ID;
+        OPERATOR[';'] = SEMICOLON_ID;
+        OPERATOR['!'] = BOOLEAN_NOT_ID;
+        OPERATOR['.'] = END_OF_PROGRAM_ID;
+    }
+
+    // keywords are found with a perfect hash of their first two bytes and
+    // length, (c0 + 5 * c1 + length) & 63 is distinct for all of them
+    private static final int[]    KEYWORD_SLOT  = new int[64];  // hash -> keyword symbol, -1 if none
+    private static final byte[][] KEYWORD_BYTES = new byte[SymbolPool.KEYWORD_COUNT][];
+    private static final int[]    KEYWORD_TOKEN = new int[SymbolPool.KEYWORD_COUNT]; // keyword symbol -> token number
+
+    static {
+        Arrays.fill(KEYWORD_SLOT, -1);
+        for (int k = 0; k < SymbolPool.KEYWORD_COUNT; k++) {
+            byte[] spelling = SymbolPool.PREDEFINED[k].getBytes();
+            KEYWORD_BYTES[k] = spelling;
+            KEYWORD_SLOT[keywordHash(spelling[0], spelling[1], spelling.length)] = k;
+        }
+
+        KEYWORD_TOKEN[SymbolPool.BEGIN]   = BEGIN_ID;
+        KEYWORD_TOKEN[SymbolPool.END]     = END_ID;
+        KEYWORD_TOKEN[SymbolPool.IF]      = IF_ID;
+        KEYWORD_TOKEN[SymbolPool.THEN]    = THEN_ID;
+        KEYWORD_TOKEN[SymbolPool.WHILE]   = WHILE_ID;
+        KEYWORD_TOKEN[SymbolPool.DO]      = DO_ID;
+        KEYWORD_TOKEN[SymbolPool.READ]    = IO_ID;
+        KEYWORD_TOKEN[SymbolPool.WRITE]   = IO_ID;
+        KEYWORD_TOKEN[SymbolPool.WRITELN] = IO_ID;
+        KEYWORD_TOKEN[SymbolPool.DIV]     = MULT_OP_ID;
+        KEYWORD_TOKEN[SymbolPool.REM]     = MULT_OP_ID;
+        KEYWORD_TOKEN[SymbolPool.ADD]     = MULT_OP_ID;
+        KEYWORD_TOKEN[SymbolPool.STRING]  = TYPE_ID;
+        KEYWORD_TOKEN[SymbolPool.LOGICAL] = TYPE_ID;
+        KEYWORD_TOKEN[SymbolPool.INTEGER] = TYPE_ID;
+        KEYWORD_TOKEN[SymbolPool.COMMENT] = COMMENT_STATE;
+        KEYWORD_TOKEN[SymbolPool.TRUE]    = LITERAL_ID;
+        KEYWORD_TOKEN[SymbolPool.FALSE]   = LITERAL_ID;
+        KEYWORD_TOKEN[SymbolPool.AND]     = MULT_OP_ID;
+        KEYWORD_TOKEN[SymbolPool.OR]      = ADD_OP_ID;
+    }
+
+    private static int keywordHash(int first, int second, int length) {
+        return (first + 5 * second + length) & 63;
+    }
+
+    private static final int WINDOW_SIZE = 1 << 16; // initial size of the reused byte window
+    private static final int MIN_CHUNK_SIZE = 1 << 20; // smallest piece of a file scanned in parallel
+
+    // byte patterns for the SWAR searches, one copy of the byte per lane
+    private static final long ONES           = 0x0101010101010101L;
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long HIGH_BITS      = 0x8080808080808080L;
+    private static final long NEWLINES       = ONES * '\n';
+    private static final long RETURNS        = ONES * '\r';
+    private static final long BLANKS         = ONES * ' ';
+    private static final long SEMICOLON      = ONES * ';';
+    private static final long QUOTE          = ONES * '"';
 
     // private member variables
-    private BufferedReader buffer;   // buffer for reading file and storing one line at a time
-    private ArrayList<Token> tokens; // storage for storing Token objects
-    private PrintWriter fileOut;     // object to write out to listing file
-    private StringBuilder errors;    // buffer for error messages
-    private HashSet<String> keywords;// fast keyword lookup
-    private int currentToken;        // for GetToken which returns one token at a time
+    private BufferedReader buffer;   // source when reading from a reader, null when mapped
+    private ByteBuffer source;       // mapped file, or a window over window[] for a reader
+    private byte[] window;           // reused byte window for reader input
+    private char[] chars;            // reused chunk of characters read from the reader
+    private int base;                // offset in the input of the first byte in source
+    private int position;            // start of the next line in source
+    private int limit;               // end of valid bytes in source
+    private boolean endOfInput;      // true once every byte of input is in source
 
-    // class constructor
+    private TokenBuffer tokens;      // storage for tokens, a small window in lazy mode
+    private SymbolPool symbols;      // interned lexemes, shared with the parser
+    private ListingWriter listing;   // writes the listing file, null when there is none
+    private ArrayList<Diagnostic> errors; // error messages with their positions
+    private int currentToken;        // for nextToken which returns one token at a time
+    private int lastLine;            // line of the last token nextToken() returned, MAX_VALUE after the end
+    private boolean lazy;            // true when tokens are scanned on demand by nextToken()
+    private boolean finished;        // true once the input is exhausted
+
+    // DFA state carried from one line to the next
+    private int lineNumber;
+    private int stateNumber;
+    private boolean commentOn;       // true when we see a comment token
+    private int entryState;          // state a parallel chunk was scanned from
+    private boolean entryComment;    // comment flag a parallel chunk was scanned from
+
+    // the last version of the file and what is recorded for the next one,
+    // see TokenCache; null and unused without a cache
+    private TokenCache cache;
+    private int[]     lineStarts;    // offset of every line
+    private int[]     lineStates;    // DFA state every line is entered in
+    private boolean[] lineComments;  // comment flag every line is entered in
+    private int[]     lineTokens;    // index of the first token of every line
+    private int       scannedLines;  // lines the DFA ran over, the others were kept
+
+    // class constructor, scans the whole file up front
     // throws an IOException if file cannot be opened
     public Scanner(BufferedReader buffer) throws IOException {
-        this.buffer       = buffer;
-        this.tokens       = new ArrayList<Token>();
-        this.fileOut      = new PrintWriter("listing_file.txt");
-        this.errors       = new StringBuilder();
-        this.keywords     = new HashSet<String>();
-        this.currentToken = 0;
+        this(buffer, false, null);
+    }
 
-        // add all keywords to hash set
-        keywords.add("begin");
-        keywords.add("end");
-        keywords.add("if");
-        keywords.add("then");
-        keywords.add("while");
-        keywords.add("do");
-        keywords.add("read");
-        keywords.add("write");
-        keywords.add("writeln");
-        keywords.add("div");
-        keywords.add("rem");
-        keywords.add("add");
-        keywords.add("string");
-        keywords.add("logical");
-        keywords.add("integer");
-        keywords.add("comment");
-        keywords.add("true");
-        keywords.add("false");
+    // class constructor
+    // in lazy mode only the lines needed by nextToken() are scanned, so memory
+    // stays constant whatever the input size
+    // a listing file is written to listingPath unless it is null
+    // throws an IOException if file cannot be opened
+    public Scanner(BufferedReader buffer, boolean lazy, Path listingPath) throws IOException {
+        this.buffer     = buffer;
+        this.window     = new byte[WINDOW_SIZE];
+        this.chars      = new char[WINDOW_SIZE / 4];
+        this.source     = ByteBuffer.wrap(window);
+        this.limit      = 0;
+        this.endOfInput = false;
+        init(lazy, listingPath);
 
+        if (!lazy) {
+            findTokens();
+        }
+    }
+
+    // class constructor, maps the source file instead of reading it
+    // throws an IOException if file cannot be opened
+    public Scanner(Path path, boolean lazy, Path listingPath) throws IOException {
+        map(path);
+        init(lazy, listingPath);
+
+        if (!lazy) {
+            findTokens();
+        }
+    }
+
+    // class constructor, maps the source file and scans all of it up front
+    // large files are split at line boundaries and scanned by up to threads
+    // workers, giving exactly the tokens a serial scan would
+    // throws an IOException if file cannot be opened
+    public Scanner(Path path, int threads, Path listingPath) throws IOException {
+        map(path);
+        init(false, listingPath);
+
+        if (threads > 1 && limit >= 2 * MIN_CHUNK_SIZE) {
+            findTokensParallel(threads);
+        } else {
+            findTokens();
+        }
+    }
+
+    // class constructor, maps the source file and scans all of it up front,
+    // keeping the tokens cache has for the lines that did not change since
+    // the last version; the cache is then updated to this version
+    // throws an IOException if file cannot be opened
+    public Scanner(Path path, Path listingPath, TokenCache cache) throws IOException {
+        map(path);
+        this.cache = cache;
+        init(false, listingPath);
+        findTokensCached();
+    }
+
+    // class constructor, scans source from its position to its limit, for a
+    // caller that already holds the bytes; lexemes are interned into
+    // symbols, which the caller may clear and pass again for the next source
+    public Scanner(ByteBuffer source, SymbolPool symbols, boolean lazy) throws IOException {
+        this.buffer     = null;
+        this.source     = source.slice();
+        this.limit      = this.source.limit();
+        this.endOfInput = true;
+        this.symbols    = symbols;
+        init(lazy, null);
+
+        if (!lazy) {
+            findTokens();
+        }
+    }
+
+    // chunk constructor for parallel scanning: scans source[from, to), which
+    // starts at a line boundary, from the given DFA state
+    // line numbers of its tokens and errors are relative to the chunk
+    private Scanner(ByteBuffer source, int from, int to, int stateNumber, boolean commentOn) throws IOException {
+        this.buffer     = null;
+        this.source     = source;
+        this.limit      = to;
+        this.endOfInput = true;
+        init(false, null);
+
+        this.position    = from;
+        this.stateNumber = stateNumber;
+        this.commentOn   = commentOn;
+        this.entryState  = stateNumber;
+        this.entryComment = commentOn;
         findTokens();
     }
 
+    // maps the whole file as the source
+    private void map(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        this.buffer     = null;
+        this.limit      = source.limit();
+        this.endOfInput = true;
+    }
+
+    // shared by every constructor
+    private void init(boolean lazy, Path listingPath) throws IOException {
+        this.base         = 0;
+        this.position     = 0;
+        if (symbols == null) {
+            this.symbols  = (cache == null) ? new SymbolPool() : cache.getSymbols();
+        }
+        this.tokens       = new TokenBuffer(symbols);
+        this.errors       = new ArrayList<Diagnostic>();
+        this.currentToken = 0;
+        this.lastLine     = 0;
+        this.lazy         = lazy;
+        this.finished     = false;
+        this.lineNumber   = 0;
+        this.stateNumber  = 0;
+        this.commentOn    = false;
+
+        if (listingPath != null) {
+            listing = new ListingWriter(listingPath);
+            if (endOfInput) {
+                // the whole mapped file goes to the writer thread at once
+                listing.append(source.duplicate());
+            }
+        }
+    }
+
     // print all tokens
+    // debug path only: a lazy scanner just prints the tokens in its current window
     public void printAllTokens() {
-        String str = new String();
+        printAllTokens(System.out);
+    }
 
-        for (Token t : tokens) {
-            str += t.getLexeme() + " ";
+    public void printAllTokens(PrintStream out) {
+        StringBuilder str = new StringBuilder();
+
+        for (int i = 0; i < tokens.size(); i++) {
+            str.append(tokens.getLexeme(i)).append(' ');
         }
 
-        System.out.println(str);
+        out.println(str);
     }
 
-    // returns respective token number for certain keywords
-    private int checkKeyword(String tempToken) {
-        if (!keywords.contains(tempToken)) {
-            return DEAD_STATE;
-        } else {
-            if (tempToken.equals("begin")) {
-                return BEGIN_ID;
-            } else if (tempToken.equals("end")) {
-                return END_ID;
-            } else if (tempToken.equals("if")) {
-                return IF_ID;
-            } else if (tempToken.equals("then")) {
-                return THEN_ID;
-            } else if (tempToken.equals("while")) {
-                return WHILE_ID;
-            } else if (tempToken.equals("do")) {
-                return DO_ID;
-            } else if (tempToken.equals("read") || tempToken.equals("write") || tempToken.equals("writeln")) {
-                return IO_ID;
-            } else if (tempToken.equals("div") || tempToken.equals("rem") || tempToken.equals("add")) {
-                return MULT_OP_ID;
-            } else if (tempToken.equals("string") || tempToken.equals("integer") || tempToken.equals("logical")) {
-                return TYPE_ID;
-            } else if (tempToken.equals("true") || tempToken.equals("false")) {
-                return LITERAL_ID;
-            } else if (tempToken.equals("comment")) {
-                return COMMENT_STATE;
-            } else {
-                return DEAD_STATE;
+    // returns the keyword symbol spelled by source[start, start + length)
+    // ignoring case, or -1 if it is not a keyword
+    private int checkKeyword(int start, int length) {
+        if (length < 2 || length > 7) {
+            return -1;
+        }
+
+        int first  = LOWER[source.get(start) & 0xFF];
+        int second = LOWER[source.get(start + 1) & 0xFF];
+        int keyword = KEYWORD_SLOT[keywordHash(first, second, length)];
+        if (keyword < 0 || KEYWORD_BYTES[keyword].length != length) {
+            return -1;
+        }
+
+        byte[] spelling = KEYWORD_BYTES[keyword];
+        for (int i = 0; i < length; i++) {
+            if (LOWER[source.get(start + i) & 0xFF] != spelling[i]) {
+                return -1;
             }
         }
+        return keyword;
     }
 
-    // checks current line for specific tokens
-    private int checkToken(String line, int currentPos) {
-        if (line.charAt(currentPos) == '+' || line.charAt(currentPos) == '-') {
-            return ADD_OP_ID;
-        } else if (line.charAt(currentPos) == '!' && currentPos < line.length() - 1 && line.charAt(currentPos+1) == '=' ) {
-            return RELATIONAL_OP_ID;        
-        } else if (line.charAt(currentPos) == ':' && currentPos < line.length() - 1 && line.charAt(currentPos+1) == '=' ) {
-            return ASSIGNMENT_ID;
-        } else if (line.charAt(currentPos) == '*' || line.charAt(currentPos) == '/') {
-            return MULT_OP_ID;
-        } else if (line.charAt(currentPos) == '=' || line.charAt(currentPos) == '<' || line.charAt(currentPos) == '>') {
-            return RELATIONAL_OP_ID;
-        } else if (line.charAt(currentPos) == '(') {
-            return OPEN_PARENS_ID;
-        } else if (line.charAt(currentPos) == ')') {
-            return CLOSING_PARENS_ID;
-        } else if (line.charAt(currentPos) == ';') {
-            return SEMICOLON_ID;
-        } else if (line.charAt(currentPos) == '!') {
-            return BOOLEAN_NOT_ID;
-        } else if (line.charAt(currentPos) == '.') {
-            return END_OF_PROGRAM_ID;
-        }  else {
+    // checks byte at offset for specific tokens, end is the end of the line
+    private int checkToken(int offset, int end) {
+        int ch = source.get(offset) & 0xFF;
+        if ((ch == '!' || ch == ':') && offset < end - 1 && source.get(offset + 1) == '=') {
+            return (ch == '!') ? RELATIONAL_OP_ID : ASSIGNMENT_ID;
+        } else if (OPERATOR[ch] != 0) {
+            return OPERATOR[ch];
+        } else {
             return DEAD_STATE;
         }
     }
 
-    // looks forward one char
-    private char peek(String line, int currentPos) {
+    // looks forward one byte
+    private int peek(int offset, int end) {
         // token is completed by whitespace
-        if (currentPos < line.length() - 1) {
-            return line.charAt(currentPos + 1);
-        } else { // (currentPos == line.length() - 1), token is at EOL
+        if (offset < end - 1) {
+            return source.get(offset + 1) & 0xFF;
+        } else { // (offset == end - 1), token is at EOL
             return EOL;
-        } 
+        }
     }
 
     // reads file into buffer line by line and finds tokens
-    // throws an IOException if BufferedReader cannot read a line
+    // throws an IOException if the input cannot be read
     // returns a Token object containing token number and lexeme
     // based on DFA that defines AlgolW lexemes
     // prints out listing file containing input file with line numbers
     // and error messages
     public void findTokens() throws IOException {
-        int lineNumber = 0;
-        int stateNumber = 0;
-
-        boolean commentOn = false; // true when we see a comment token
-        String line = buffer.readLine();
-        while (line != null) {
-            line = line.toLowerCase();
-            lineNumber += 1;
-            fileOut.println(lineNumber + " " + line);
-
-            boolean foundToken = false; // true when token is ready to be stored
-            boolean stringOn = false; // true when we see a beginning of string token
-            int readingPos = 0; // current position where token starts in string
-
-            for (int currentPos = 0; currentPos < line.length(); currentPos++) {
-                if (!commentOn) {
-                    if (stringOn) {
-                        if (line.charAt(currentPos) == '"' && stateNumber == LITERAL_ID) {
-                            foundToken = true;
-                            stringOn = false;
-                        } else {
-                            continue;
-                        }
-                    } else if (line.charAt(currentPos) == '"' && stateNumber == 0) {
-                        stateNumber = LITERAL_ID; 
-                        stringOn = true;
-                        continue;
-                    } else if (Character.isWhitespace(line.charAt(currentPos)) && stateNumber != LITERAL_ID) {
-                        stateNumber = 0;
-                        readingPos++;
-                        continue; // eat whitespace
-                    } else if (Character.isLetter(line.charAt(currentPos)) && stateNumber != LITERAL_ID) {
-                        if (stateNumber == 0) {
-                            stateNumber = IDENTIFIER_ID;
-                        }
-                        char ch = peek(line, currentPos);
-                        if (!Character.isLetter(ch) && !Character.isDigit(ch) || ch == EOL) {
-                            foundToken = true;
-                        } else {
-                            continue;
-                        }
-                    } else if (Character.isDigit(line.charAt(currentPos))) {
-                        //if (stateNumber == 0) {
-                        stateNumber = LITERAL_ID;
-
-                        if (line.charAt(currentPos) == '0') { 
-                            foundToken = true;
-                        } 
-                       // } else 
-                        if (stateNumber == LITERAL_ID) {
-                            char ch = peek(line, currentPos);
-                            if (!Character.isDigit(ch) || ch == EOL) {
-                                foundToken = true;
-                            } else {
-                                continue;
-                            }
-                        }
-                    } else {
-                        if (stateNumber == 0) { 
-                            stateNumber = checkToken(line, currentPos);
-                        }
-                        if (stateNumber == RELATIONAL_OP_ID || stateNumber == ASSIGNMENT_ID) {
-                            if (line.charAt(currentPos) == '!' || line.charAt(currentPos) == ':') currentPos++;
-                            foundToken = true;
-                        } else if (stateNumber != DEAD_STATE) {
-                            foundToken = true;
-                        }
-                    }
+        while (scanLine()) {
+            // every line appends its tokens
+        }
+    }
 
-                    if (foundToken && stateNumber > 0) {
-                        String tempToken = line.substring(readingPos, currentPos + 1);
-                        if (stateNumber == IDENTIFIER_ID) {
-                            int test = checkKeyword(tempToken);
-                            if (test > 0 || test == COMMENT_STATE) {
-                                stateNumber = test;
-                            }
-                        }
-
-                        if (stateNumber == COMMENT_STATE) {
-                            commentOn = true;
-                            continue;
-                        } 
-
-                        Token temp = new Token(stateNumber, tempToken);
-                        tokens.add(temp);
-                        readingPos = currentPos + 1;
-                        stateNumber = 0;
-                    } else if (stateNumber == DEAD_STATE) {
-                        errors.append("Token error on line " + lineNumber + '\n');
-                    }
-                } else if (line.charAt(currentPos) == ';') {
+    // findTokens() against the last version in cache
+    private void findTokensCached() throws IOException {
+        int lines = (cache.hasVersion() ? cache.getLineCount() : 0) + 16;
+        lineStarts   = new int[lines];
+        lineStates   = new int[lines];
+        lineComments = new boolean[lines];
+        lineTokens   = new int[lines];
+
+        int tail  = limit; // the source is the same as before from here on
+        int shift = 0;     // offset in the last version minus offset in this one, from tail on
+        if (cache.hasVersion()) {
+            keep(0, cache.sharedLines(source, limit), 0, 0);
+            tail  = cache.sharedEnd(source, limit);
+            shift = cache.getLength() - limit;
+        }
+
+        while (true) {
+            if (cache.hasVersion() && position >= tail) {
+                // the rest is kept once a line is entered the way it was before
+                int line = cache.lineAt(position + shift);
+                if (line >= 0 && cache.getEntryState(line) == stateNumber
+                        && cache.getEntryComment(line) == commentOn) {
+                    keep(line, cache.getLineCount(), -shift, lineNumber - line);
+                }
+            }
+            if (!scanLine()) {
+                break;
+            }
+        }
+
+        recordLine(limit);
+        cache.update(source, limit, lineNumber, lineStarts, lineStates, lineComments, lineTokens,
+            tokens, errors, scannedLines);
+    }
+
+    // takes lines [from, end) of the last version from cache, moved by
+    // startShift bytes and lineShift lines, and goes on after them
+    private void keep(int from, int end, int startShift, int lineShift) {
+        int tokenShift = tokens.size() - cache.getFirstToken(from);
+        for (int line = from; line < end; line++) {
+            growLines(line + lineShift);
+            lineStarts[line + lineShift]   = cache.getLineStart(line) + startShift;
+            lineStates[line + lineShift]   = cache.getEntryState(line);
+            lineComments[line + lineShift] = cache.getEntryComment(line);
+            lineTokens[line + lineShift]   = cache.getFirstToken(line) + tokenShift;
+        }
+        cache.copyLines(tokens, errors, from, end, startShift, lineShift);
+
+        lineNumber  = end + lineShift;
+        stateNumber = cache.getEntryState(end);
+        commentOn   = cache.getEntryComment(end);
+        position    = cache.getLineStart(end) + startShift;
+    }
+
+    // records the line about to be scanned from offset, for the cache
+    private void recordLine(int offset) {
+        growLines(lineNumber);
+        lineStarts[lineNumber]   = base + offset;
+        lineStates[lineNumber]   = stateNumber;
+        lineComments[lineNumber] = commentOn;
+        lineTokens[lineNumber]   = tokens.size();
+    }
+
+    private void growLines(int line) {
+        if (line >= lineStarts.length) {
+            int size = Math.max(line + 1, lineStarts.length * 2);
+            lineStarts   = Arrays.copyOf(lineStarts, size);
+            lineStates   = Arrays.copyOf(lineStates, size);
+            lineComments = Arrays.copyOf(lineComments, size);
+            lineTokens   = Arrays.copyOf(lineTokens, size);
+        }
+    }
+
+    // scans the mapped source in chunks on a ForkJoinPool, then stitches them
+    // every chunk after the first is speculatively scanned from the initial
+    // DFA state; a chunk whose predecessor ends in another state (inside a
+    // comment, for instance) is scanned again from the right one
+    private void findTokensParallel(int threads) throws IOException {
+        int chunkCount = Math.min(threads * 4, limit / MIN_CHUNK_SIZE);
+        int[] bounds = new int[chunkCount + 1];
+        bounds[chunkCount] = limit;
+        for (int i = 1; i < chunkCount; i++) {
+            bounds[i] = nextLineStart(Math.max((int) ((long) limit * i / chunkCount), bounds[i - 1]));
+        }
+
+        ArrayList<Callable<Scanner>> tasks = new ArrayList<Callable<Scanner>>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            final int from = bounds[i];
+            final int to   = bounds[i + 1];
+            tasks.add(new Callable<Scanner>() {
+                public Scanner call() throws IOException {
+                    return new Scanner(source.duplicate(), from, to, 0, false);
+                }
+            });
+        }
+
+        Scanner[] chunks = new Scanner[chunkCount];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Future<Scanner>> results = pool.invokeAll(tasks);
+            for (int i = 0; i < chunkCount; i++) {
+                chunks[i] = results.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while scanning");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        // check the speculation and stitch the chunks in order
+        for (int i = 0; i < chunkCount; i++) {
+            Scanner chunk = chunks[i];
+            if (chunk.entryState != stateNumber || chunk.entryComment != commentOn) {
+                chunk = new Scanner(source.duplicate(), bounds[i], bounds[i + 1], stateNumber, commentOn);
+            }
+
+            int[] symbolMap = new int[chunk.symbols.size()];
+            for (int id = 0; id < symbolMap.length; id++) {
+                symbolMap[id] = symbols.intern(chunk.symbols, id);
+            }
+            tokens.append(chunk.tokens, lineNumber, symbolMap);
+            for (Diagnostic d : chunk.errors) {
+                errors.add(new Diagnostic(d.getLine() + lineNumber, d.getColumn(), d.getMessage()));
+            }
+
+            lineNumber += chunk.lineNumber;
+            stateNumber = chunk.stateNumber;
+            commentOn   = chunk.commentOn;
+        }
+
+        // every line has been scanned, this only completes the listing
+        position = limit;
+        scanLine();
+    }
+
+    // SWAR search: the source is read 8 bytes at a time as big endian longs,
+    // two longs per step, and every byte is compared at once; the JDK Vector
+    // API would need jdk.incubator.vector at compile and run time
+
+    // 0x80 in every byte of word that is zero and 0 elsewhere, without the
+    // false positives of the shorter (word - ONES) & ~word form
+    private static long zeroBytes(long word) {
+        long y = (word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS;
+        return ~(y | word | LOW_SEVEN_BITS);
+    }
+
+    // offset of the byte flagged first in memory order by a zeroBytes() mask
+    private static int firstFlagged(long mask) {
+        return Long.numberOfLeadingZeros(mask) >>> 3;
+    }
+
+    // first offset in [from, to) holding b, or to if there is none
+    private int indexOf(long pattern, int from, int to) {
+        int i = from;
+        for (; i + 16 <= to; i += 16) {
+            long first  = zeroBytes(source.getLong(i) ^ pattern);
+            long second = zeroBytes(source.getLong(i + 8) ^ pattern);
+            if (first != 0) {
+                return i + firstFlagged(first);
+            }
+            if (second != 0) {
+                return i + 8 + firstFlagged(second);
+            }
+        }
+        for (; i + 8 <= to; i += 8) {
+            long found = zeroBytes(source.getLong(i) ^ pattern);
+            if (found != 0) {
+                return i + firstFlagged(found);
+            }
+        }
+        byte b = (byte) pattern;
+        for (; i < to; i++) {
+            if (source.get(i) == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // first offset in [from, to) holding '\n' or '\r', or to if there is none
+    private int indexOfLineEnd(int from, int to) {
+        int i = from;
+        for (; i + 16 <= to; i += 16) {
+            long first  = source.getLong(i);
+            long second = source.getLong(i + 8);
+            long firstFound  = zeroBytes(first ^ NEWLINES) | zeroBytes(first ^ RETURNS);
+            long secondFound = zeroBytes(second ^ NEWLINES) | zeroBytes(second ^ RETURNS);
+            if (firstFound != 0) {
+                return i + firstFlagged(firstFound);
+            }
+            if (secondFound != 0) {
+                return i + 8 + firstFlagged(secondFound);
+            }
+        }
+        for (; i < to; i++) {
+            byte b = source.get(i);
+            if (b == '\n' || b == '\r') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // first offset in [from, to) that is not a ' ', or to if there is none
+    private int skipBlanks(int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long other = ~zeroBytes(source.getLong(i) ^ BLANKS) & HIGH_BITS;
+            if (other != 0) {
+                return i + firstFlagged(other);
+            }
+        }
+        for (; i < to; i++) {
+            if (source.get(i) != ' ') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // first line start at or after offset
+    private int nextLineStart(int offset) {
+        while (offset < limit && offset > 0) {
+            byte previous = source.get(offset - 1);
+            if (previous == '\n' || (previous == '\r' && source.get(offset) != '\n')) {
+                break;
+            }
+            offset++;
+        }
+        return offset;
+    }
+
+    // finds the next line in source and appends its tokens
+    // lines end at "\n", "\r" or "\r\n" just like BufferedReader.readLine()
+    // returns false once the input is exhausted, at which point the
+    // listing file is completed and closed
+    private boolean scanLine() throws IOException {
+        if (finished) {
+            return false;
+        }
+
+        int end = position;
+        while (true) {
+            end = indexOfLineEnd(end, limit);
+            if (end == limit) {
+                if (endOfInput) {
+                    break;
+                }
+                end -= position;
+                fill();
+                continue;
+            }
+            // need to see the next byte to tell "\r" from "\r\n"
+            if (source.get(end) == '\r' && end + 1 == limit && !endOfInput) {
+                end -= position;
+                fill();
+                continue;
+            }
+            break;
+        }
+
+        if (end == position && end == limit) {
+            finished = true;
+            if (listing != null) {
+                listing.close(errors);
+            }
+            return false;
+        }
+
+        int start = position;
+        position = end;
+        if (position < limit) {
+            // skip the line terminator
+            if (source.get(position++) == '\r' && position < limit && source.get(position) == '\n') {
+                position++;
+            }
+        }
+
+        if (cache != null) {
+            recordLine(start);
+            scannedLines++;
+        }
+        lineNumber += 1;
+        scanLine(start, end);
+        return true;
+    }
+
+    // moves the unscanned bytes to the front of the window and reads more
+    // input behind them, growing the window if a single line fills it
+    private void fill() throws IOException {
+        int remaining = limit - position;
+        if (remaining > 0 && position > 0) {
+            System.arraycopy(window, position, window, 0, remaining);
+        }
+        base += position;
+        position = 0;
+        limit = remaining;
+
+        int count = buffer.read(chars, 0, chars.length);
+        if (count < 0) {
+            endOfInput = true;
+            return;
+        }
+
+        // every char takes at most 3 bytes in UTF-8
+        if (window.length - limit < count * 3) {
+            byte[] larger = new byte[Math.max(window.length * 2, limit + count * 3)];
+            System.arraycopy(window, 0, larger, 0, limit);
+            window = larger;
+            source = ByteBuffer.wrap(window);
+        }
+
+        for (int i = 0; i < count; i++) {
+            int c = chars[i];
+            if (Character.isHighSurrogate(chars[i]) && i + 1 < count && Character.isLowSurrogate(chars[i + 1])) {
+                c = Character.toCodePoint(chars[i], chars[++i]);
+            } else if (Character.isSurrogate(chars[i])) {
+                c = '?';
+            }
+
+            if (c < 0x80) {
+                window[limit++] = (byte) c;
+            } else if (c < 0x800) {
+                window[limit++] = (byte) (0xC0 | (c >> 6));
+                window[limit++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c < 0x10000) {
+                window[limit++] = (byte) (0xE0 | (c >> 12));
+                window[limit++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                window[limit++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                window[limit++] = (byte) (0xF0 | (c >> 18));
+                window[limit++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+                window[limit++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                window[limit++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        if (listing != null) {
+            listing.append(ByteBuffer.wrap(Arrays.copyOfRange(window, remaining, limit)));
+        }
+    }
+
+    // runs the DFA over the bytes in [lineStart, lineEnd) of source
+    private void scanLine(int lineStart, int lineEnd) {
+        boolean foundToken = false; // true when token is ready to be stored
+        boolean stringOn = false; // true when we see a beginning of string token
+        int stringStart = 0; // position of the opening '"' while stringOn
+        int readingPos = lineStart; // current position where token starts in source
+
+        for (int currentPos = lineStart; currentPos < lineEnd; currentPos++) {
+            if (commentOn) {
+                // nothing but the closing ';' matters inside a comment
+                currentPos = indexOf(SEMICOLON, currentPos, lineEnd);
+                if (currentPos < lineEnd) {
                     commentOn = false;
-                    continue;
                 }
+                continue;
             }
 
             if (stringOn) {
-                errors.append("Incomplete string error on line " + lineNumber + '\n');
+                // nothing but the closing '"' matters inside a string
+                currentPos = indexOf(QUOTE, currentPos, lineEnd);
+                if (currentPos == lineEnd) {
+                    break;
+                }
             }
-            line = buffer.readLine();
+
+            int ch = source.get(currentPos) & 0xFF;
+            byte charClass = CHAR_CLASS[ch];
+
+            if (stringOn) {
+                if (ch == '"' && stateNumber == LITERAL_ID) {
+                    foundToken = true;
+                    stringOn = false;
+                } else {
+                    continue;
+                }
+            } else if (ch == '"' && stateNumber == 0) {
+                stateNumber = LITERAL_ID;
+                stringOn = true;
+                stringStart = currentPos;
+                continue;
+            } else if (charClass == SPACE && stateNumber != LITERAL_ID) {
+                // eat whitespace, a run of blanks at once
+                int runEnd = skipBlanks(currentPos + 1, lineEnd);
+                stateNumber = 0;
+                readingPos += runEnd - currentPos;
+                currentPos = runEnd - 1;
+                continue;
+            } else if (charClass == LETTER && stateNumber != LITERAL_ID) {
+                if (stateNumber == 0) {
+                    stateNumber = IDENTIFIER_ID;
+                }
+                byte next = CHAR_CLASS[peek(currentPos, lineEnd)];
+                if (next != LETTER && next != DIGIT) {
+                    foundToken = true;
+                } else {
+                    continue;
+                }
+            } else if (charClass == DIGIT) {
+                stateNumber = LITERAL_ID;
+
+                if (ch == '0') {
+                    foundToken = true;
+                }
+                if (CHAR_CLASS[peek(currentPos, lineEnd)] != DIGIT) {
+                    foundToken = true;
+                } else {
+                    continue;
+                }
+            } else {
+                if (stateNumber == 0) {
+                    stateNumber = checkToken(currentPos, lineEnd);
+                }
+                if (stateNumber == RELATIONAL_OP_ID || stateNumber == ASSIGNMENT_ID) {
+                    if (ch == '!' || ch == ':') currentPos++;
+                    foundToken = true;
+                } else if (stateNumber != DEAD_STATE) {
+                    foundToken = true;
+                }
+            }
+
+            if (foundToken && stateNumber > 0) {
+                int length = currentPos + 1 - readingPos;
+                int symbol = -1;
+                if (stateNumber == IDENTIFIER_ID) {
+                    symbol = checkKeyword(readingPos, length);
+                    if (symbol >= 0) {
+                        stateNumber = KEYWORD_TOKEN[symbol];
+                    }
+                }
+
+                if (stateNumber == COMMENT_STATE) {
+                    commentOn = true;
+                    continue;
+                }
+
+                if (symbol < 0) {
+                    symbol = symbols.intern(source, readingPos, length, LOWER);
+                }
+                tokens.add(stateNumber, base + readingPos, length, lineNumber, readingPos - lineStart + 1, symbol);
+                readingPos = currentPos + 1;
+                stateNumber = 0;
+            } else if (stateNumber == DEAD_STATE) {
+                errors.add(new Diagnostic(lineNumber, currentPos - lineStart + 1, "Token error"));
+            }
+        }
+
+        if (stringOn) {
+            errors.add(new Diagnostic(lineNumber, stringStart - lineStart + 1, "Incomplete string error"));
         }
-        fileOut.println(errors.toString());
-        fileOut.close();
     }
 
-    // returns one token at a time, return null when no more tokens
-    public Token getToken() {
+    // returns the index of the next token, or -1 when no more tokens
+    // the index is only valid until the next call in lazy mode, where the
+    // window is refilled from the input once it runs dry
+    public int nextToken() {
+        if (lazy && tokens.size() <= currentToken) {
+            tokens.clear();
+            currentToken = 0;
+            try {
+                while (tokens.size() == 0 && scanLine()) {
+                    // skip lines without tokens
+                }
+            } catch (IOException e) {
+                errors.add(new Diagnostic(lineNumber + 1, 1, "Read error: " + e.getMessage()));
+            }
+        }
+
         if (tokens.size() > currentToken) {
-            return tokens.get(currentToken++);
+            lastLine = tokens.getLine(currentToken);
+            return currentToken++;
         } else {
-            return null;
+            lastLine = Integer.MAX_VALUE;
+            return -1;
+        }
+    }
+
+    // token number of a token returned by nextToken()
+    public int getTokenNumber(int token) {
+        return (token < 0) ? END_OF_FILE_ID : tokens.getKind(token);
+    }
+
+    // line number of a token returned by nextToken(), the last line at EOF
+    public int getLine(int token) {
+        return (token < 0) ? lineNumber : tokens.getLine(token);
+    }
+
+    // 1 based column of a token returned by nextToken(), 1 at EOF
+    public int getColumn(int token) {
+        return (token < 0) ? 1 : tokens.getColumn(token);
+    }
+
+    // readable name of a token number
+    public static String tokenName(int tokenNumber) {
+        return TOKEN_NAMES[tokenNumber];
+    }
+
+    // lexeme of a token returned by nextToken()
+    public String getLexeme(int token) {
+        return (token < 0) ? "" : tokens.getLexeme(token);
+    }
+
+    // first character of the lexeme of a token returned by nextToken()
+    public char firstChar(int token) {
+        return (token < 0) ? EOL : tokens.firstChar(token);
+    }
+
+    // interned symbol id of a token returned by nextToken(), -1 at EOF
+    public int getSymbol(int token) {
+        return (token < 0) ? -1 : tokens.getSymbol(token);
+    }
+
+    // symbols of every lexeme scanned so far
+    public SymbolPool getSymbols() {
+        return symbols;
+    }
+
+    // returns one token at a time, return null when no more tokens
+    // debug view of nextToken(), makes a Token object for every call
+    public Token getToken() {
+        int token = nextToken();
+        return (token < 0) ? null : tokens.getToken(token);
+    }
+
+    // error messages up to the line of the last token nextToken() returned,
+    // all of them once it got to the end. A lazy scan never gets further, so
+    // this is the same whether the file was scanned lazily, up front or in
+    // parallel; the listing file still has every error
+    public List<Diagnostic> getErrors() {
+        int count = errors.size();
+        while (count > 0 && errors.get(count - 1).getLine() > lastLine) {
+            count--;
+        }
+        return errors.subList(0, count);
+    }
+
+    // scans whatever the parser did not ask for so the listing file is complete
+    public void close() throws IOException {
+        while (listing != null && scanLine()) {
+            // remaining tokens are only needed for the listing
+            tokens.clear();
+            currentToken = 0;
         }
     }
 }
@@ -0,0 +1,196 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * SymbolPool.java
+ *
+ * Interns every lexeme the Scanner finds and hands out a dense integer id
+ * per distinct spelling, so the parser and symbol table compare ints
+ * instead of Strings
+ */
+
+import java.nio.ByteBuffer;               // source bytes
+import java.nio.charset.StandardCharsets; // lexemes are decoded once per symbol
+import java.util.Arrays;                  // for growing the arrays
+
+public class SymbolPool {
+    // predefined symbols, interned by the constructor in this order
+    // keywords come first so their ids can index Scanner's keyword tables
+    public static final int BEGIN     = 0;
+    public static final int END       = 1;
+    public static final int IF        = 2;
+    public static final int THEN      = 3;
+    public static final int WHILE     = 4;
+    public static final int DO        = 5;
+    public static final int READ      = 6;
+    public static final int WRITE     = 7;
+    public static final int WRITELN   = 8;
+    public static final int DIV       = 9;
+    public static final int REM       = 10;
+    public static final int ADD       = 11;
+    public static final int STRING    = 12;
+    public static final int LOGICAL   = 13;
+    public static final int INTEGER   = 14;
+    public static final int COMMENT   = 15;
+    public static final int TRUE      = 16;
+    public static final int FALSE     = 17;
+    public static final int AND       = 18;
+    public static final int OR        = 19;
+    public static final int PLUS      = 20;
+    public static final int MINUS     = 21;
+    public static final int STAR      = 22;
+    public static final int SLASH     = 23;
+    public static final int EQUAL     = 24;
+    public static final int LESS      = 25;
+    public static final int GREATER   = 26;
+    public static final int NOT_EQUAL = 27;
+
+    public static final int KEYWORD_COUNT = 20;
+
+    static final String[] PREDEFINED = {
+        "begin", "end", "if", "then", "while", "do", "read", "write", "writeln",
+        "div", "rem", "add", "string", "logical", "integer", "comment", "true", "false",
+        "and", "or", "+", "-", "*", "/", "=", "<", ">", "!="
+    };
+
+    private static final int INITIAL_SIZE = 1 << 10;
+
+    private byte[]   bytes;   // spellings, back to back
+    private int      size;    // number of bytes in use
+    private int[]    offset;  // offset of each symbol's spelling in bytes
+    private int[]    length;  // length of each symbol's spelling
+    private int[]    hash;    // hash of each symbol's spelling
+    private String[] names;   // decoded spelling, made on first request
+    private int      count;   // number of symbols
+
+    private int[]    table;   // open addressing hash table of symbol ids, -1 when empty
+
+    public SymbolPool() {
+        this.bytes  = new byte[INITIAL_SIZE * 8];
+        this.size   = 0;
+        this.offset = new int[INITIAL_SIZE];
+        this.length = new int[INITIAL_SIZE];
+        this.hash   = new int[INITIAL_SIZE];
+        this.names  = new String[INITIAL_SIZE];
+        this.count  = 0;
+        this.table  = new int[INITIAL_SIZE * 2];
+        Arrays.fill(table, -1);
+
+        for (String word : PREDEFINED) {
+            byte[] spelling = word.getBytes(StandardCharsets.UTF_8);
+            intern(ByteBuffer.wrap(spelling), 0, spelling.length, null);
+        }
+    }
+
+    // returns the id for source[start, start + length), every byte mapped
+    // through fold (or taken as is when fold is null), adding it if new
+    public int intern(ByteBuffer source, int start, int length, byte[] fold) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            int b = source.get(start + i) & 0xFF;
+            h = 31 * h + ((fold == null) ? b : (fold[b] & 0xFF));
+        }
+
+        int mask = table.length - 1;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (table[slot] >= 0) {
+            int id = table[slot];
+            if (hash[id] == h && this.length[id] == length && sameBytes(id, source, start, fold)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return add(source, start, length, fold, h, slot);
+    }
+
+    // returns the id in this pool for symbol id of another pool
+    public int intern(SymbolPool other, int id) {
+        return intern(ByteBuffer.wrap(other.bytes, 0, other.size), other.offset[id], other.length[id], null);
+    }
+
+    // forgets every symbol but the predefined ones, keeping the arrays, so
+    // a pool can be used again for another source
+    public void clear() {
+        Arrays.fill(names, PREDEFINED.length, count, null);
+        count = PREDEFINED.length;
+        size  = offset[count - 1] + length[count - 1];
+        Arrays.fill(table, -1);
+        index();
+    }
+
+    // number of symbols interned so far
+    public int size() {
+        return count;
+    }
+
+    // spelling of a symbol, decoded once
+    public String get(int id) {
+        if (names[id] == null) {
+            names[id] = new String(bytes, offset[id], length[id], StandardCharsets.UTF_8);
+        }
+        return names[id];
+    }
+
+    // first byte of a symbol's spelling
+    public char firstChar(int id) {
+        return (char) (bytes[offset[id]] & 0xFF);
+    }
+
+    private boolean sameBytes(int id, ByteBuffer source, int start, byte[] fold) {
+        int base = offset[id];
+        for (int i = 0; i < length[id]; i++) {
+            int b = source.get(start + i) & 0xFF;
+            if (bytes[base + i] != ((fold == null) ? (byte) b : fold[b])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int add(ByteBuffer source, int start, int length, byte[] fold, int h, int slot) {
+        if (count == offset.length) {
+            int newSize = count * 2;
+            offset = Arrays.copyOf(offset, newSize);
+            this.length = Arrays.copyOf(this.length, newSize);
+            hash   = Arrays.copyOf(hash, newSize);
+            names  = Arrays.copyOf(names, newSize);
+        }
+        if (bytes.length - size < length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+        }
+
+        int id = count++;
+        offset[id] = size;
+        this.length[id] = length;
+        hash[id] = h;
+        for (int i = 0; i < length; i++) {
+            int b = source.get(start + i) & 0xFF;
+            bytes[size++] = (fold == null) ? (byte) b : fold[b];
+        }
+
+        table[slot] = id;
+        // keep the table at most half full
+        if (count * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        Arrays.fill(table, -1);
+        index();
+    }
+
+    // puts every symbol in the empty table
+    private void index() {
+        int mask = table.length - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = (hash[id] ^ (hash[id] >>> 16)) & mask;
+            while (table[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+}
@@ -6,111 +6,166 @@
  * SymbolTable implementation
  */
 
-import java.util.Hashtable; // for symbol table
 import java.util.ArrayList; // for iterable stack
+import java.util.Arrays;    // for growing the binding arrays
 
 public class SymbolTable {
 
-    private static final int HASHTABLE_SIZE = 47;
+    private static final int BINDING_SIZE   = 64;
     private static final int STACK_SIZE     = 7;
     public static final int VARIABLE_SIZE   = 4;
 
-    private ArrayList<Hashtable<String, Variable>> table;    // List of tables to store per scope
-    private ArrayList<Hashtable<String, Variable>> finished; // Storage for tables that fall out of scope
+    private ArrayList<ArrayList<Variable>> table;    // variables declared per open scope
+    private ArrayList<ArrayList<Variable>> shadowed; // binding each declaration hid, per open scope
+    private ArrayList<ArrayList<Integer>>  shadowedScope; // scope level of each hidden binding
+    private ArrayList<ArrayList<Variable>> finished; // Storage for scopes that fall out of scope
+
+    // innermost visible variable and its scope level, indexed by symbol id
+    private Variable[] bindings;
+    private int[]      bindingScope;
 
     // keep track of the current scope
     // 0 for global, increases by 1 per new scope
     private int scopeLevel;
     private int currentOffset;
+    private int variableCount; // variables declared so far, in all scopes
 
     // class constructor
     public SymbolTable() {
-        this.table    = new ArrayList<Hashtable<String, Variable>>(STACK_SIZE);
-        this.finished = new ArrayList<Hashtable<String, Variable>>(STACK_SIZE * 5);
+        this.table    = new ArrayList<ArrayList<Variable>>(STACK_SIZE);
+        this.shadowed = new ArrayList<ArrayList<Variable>>(STACK_SIZE);
+        this.shadowedScope = new ArrayList<ArrayList<Integer>>(STACK_SIZE);
+        this.finished = new ArrayList<ArrayList<Variable>>(STACK_SIZE * 5);
+
+        this.table.add(new ArrayList<Variable>());
+        this.shadowed.add(new ArrayList<Variable>());
+        this.shadowedScope.add(new ArrayList<Integer>());
 
-        this.table.add(new Hashtable<String, Variable>(HASHTABLE_SIZE));
+        this.bindings     = new Variable[BINDING_SIZE];
+        this.bindingScope = new int[BINDING_SIZE];
 
         scopeLevel    = 0;
         currentOffset = 0;
+        variableCount = 0;
     }
 
     public int getCurrentOffset() {
         return currentOffset;
     }
 
+    public int getVariableCount() {
+        return variableCount;
+    }
+
     // inserts new identifier to the current scope with scope level
-    // store scope number as a value for now, change later
     public void insert(Variable v) {
         Variable temp = new Variable(v);
 
         temp.setOffset(currentOffset);
 
-		if (findCurrentScope(v) == null) {
-        	table.get(scopeLevel).put(v.getLexeme(), temp);
+        if (findCurrentScope(v) == null) {
+            int symbol = v.getSymbol();
+            if (symbol >= bindings.length) {
+                int newSize = Math.max(bindings.length * 2, symbol + 1);
+                bindings     = Arrays.copyOf(bindings, newSize);
+                bindingScope = Arrays.copyOf(bindingScope, newSize);
+            }
+
+            table.get(scopeLevel).add(temp);
+            shadowed.get(scopeLevel).add(bindings[symbol]);
+            shadowedScope.get(scopeLevel).add(bindingScope[symbol]);
+            bindings[symbol]     = temp;
+            bindingScope[symbol] = scopeLevel;
             currentOffset -= VARIABLE_SIZE;
-		}
+            temp.setNumber(variableCount++);
+        }
     }
 
     // returns identifier value if in table for current scope, else returns null
     public Variable findCurrentScope(Variable v) {
-		String str = v.getLexeme().toLowerCase();
-        return findCurrentScope(str);
+        return findCurrentScope(v.getSymbol());
     }
 
     // returns identifier value if in table for current scope, else returns null
-    public Variable findCurrentScope(String str) {
-        return table.get(scopeLevel).get(str.toLowerCase());
+    public Variable findCurrentScope(int symbol) {
+        if (symbol < 0 || symbol >= bindings.length || bindingScope[symbol] != scopeLevel) {
+            return null;
+        }
+        return bindings[symbol];
     }
 
     // returns id value if exists in any scope, else returns null
     public Variable findAllScopes(Variable v) {
-        // start with current scope, then look outward
-		String str = v.getLexeme().toLowerCase();
-        return findAllScopes(str);
+        return findAllScopes(v.getSymbol());
     }
 
     // returns id value if exists in any scope, else returns null
-    public Variable findAllScopes(String str) {
-        // start with current scope, then look outward
-        str = str.toLowerCase();
-        for (int i=table.size()-1; i >= 0; i--) {
-            if (table.get(i).containsKey(str)) {
-                return table.get(i).get(str);
-            }
+    // the innermost declaration always sits in bindings, no scope walk needed
+    public Variable findAllScopes(int symbol) {
+        if (symbol < 0 || symbol >= bindings.length) {
+            return null;
         }
-        return null;
+        return bindings[symbol];
     }
 
-    // inserts a new Hashtable and increments scope
+    // opens a new scope and increments scope level
     public void enterNewScope() {
-        this.table.add(new Hashtable<String, Variable>(HASHTABLE_SIZE));
-		scopeLevel++;
+        this.table.add(new ArrayList<Variable>());
+        this.shadowed.add(new ArrayList<Variable>());
+        this.shadowedScope.add(new ArrayList<Integer>());
+        scopeLevel++;
     }
 
-    // deletes Hashtable for current scope and adds it to finished
+    // restores the bindings hidden by the current scope and adds it to finished
     public void leaveCurrentScope() {
         if (scopeLevel > 0) {
-            finished.add(table.remove(scopeLevel));
-			scopeLevel--;
+            ArrayList<Variable> scope  = table.remove(scopeLevel);
+            ArrayList<Variable> hidden = shadowed.remove(scopeLevel);
+            ArrayList<Integer>  hiddenScope = shadowedScope.remove(scopeLevel);
+            for (int i = scope.size() - 1; i >= 0; i--) {
+                int symbol = scope.get(i).getSymbol();
+                bindings[symbol]     = hidden.get(i);
+                bindingScope[symbol] = hiddenScope.get(i);
+            }
+            finished.add(scope);
+            scopeLevel--;
         }
     }
 
-	// display contents of both symbol tables
-	@Override
+    // one scope in the same form as a Hashtable: {name=variable, ...}
+    private static String scopeToString(ArrayList<Variable> scope) {
+        StringBuilder s = new StringBuilder("{");
+        for (int i = 0; i < scope.size(); i++) {
+            if (i > 0) {
+                s.append(", ");
+            }
+            s.append(scope.get(i).getLexeme()).append('=').append(scope.get(i));
+        }
+        return s.append('}').toString();
+    }
+
+    // display contents of both symbol tables
+    @Override
     public String toString() {
-        String s = new String();
+        StringBuilder s = new StringBuilder();
 
         if (!table.isEmpty()) {
-            s += "Scope 0: \n";
-            s += table.toString() + "\n";
+            s.append("Scope 0: \n[");
+            for (int i = 0; i < table.size(); i++) {
+                if (i > 0) {
+                    s.append(", ");
+                }
+                s.append(scopeToString(table.get(i)));
+            }
+            s.append("]\n");
         }
 
         for (int i=0; i < finished.size(); i++) {
-            if (!finished.get(i).isEmpty()){            
-            s += "Scope " + (i + 1) + ": \n";
-            s += finished.get(i).toString() + "\n";
+            if (!finished.get(i).isEmpty()){
+                s.append("Scope " + (i + 1) + ": \n");
+                s.append(scopeToString(finished.get(i)) + "\n");
             }
         }
-        return s;
+        return s.toString();
     }
 }
@@ -0,0 +1,164 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * TokenBuffer.java
+ *
+ * Token stream stored as parallel int arrays: token number, start offset
+ * in the source, length, line and column number and interned symbol id of
+ * the lexeme.
+ * Token objects are only made on request, for debugging output
+ */
+
+import java.util.Arrays; // for growing the arrays
+
+public class TokenBuffer {
+    private static final int INITIAL_SIZE = 256;
+
+    private int[] kind;    // token number, see Scanner
+    private int[] start;   // offset of the first byte in the source
+    private int[] length;  // number of bytes in the lexeme
+    private int[] line;    // line number the token was found on
+    private int[] column;  // 1 based column of the first byte in its line
+    private int[] symbol;  // id of the lexeme in pool
+    private int   size;    // number of tokens in the buffer
+
+    private SymbolPool pool;
+
+    public TokenBuffer(SymbolPool pool) {
+        this.kind   = new int[INITIAL_SIZE];
+        this.start  = new int[INITIAL_SIZE];
+        this.length = new int[INITIAL_SIZE];
+        this.line   = new int[INITIAL_SIZE];
+        this.column = new int[INITIAL_SIZE];
+        this.symbol = new int[INITIAL_SIZE];
+        this.size   = 0;
+        this.pool   = pool;
+    }
+
+    public SymbolPool getPool() {
+        return pool;
+    }
+
+    // appends a token and returns its index
+    public int add(int kind, int start, int length, int line, int column, int symbol) {
+        if (size == this.kind.length) {
+            grow();
+        }
+        this.kind[size]   = kind;
+        this.start[size]  = start;
+        this.length[size] = length;
+        this.line[size]   = line;
+        this.column[size] = column;
+        this.symbol[size] = symbol;
+        return size++;
+    }
+
+    // appends every token of other, adding lineOffset to its line numbers
+    // and translating its symbol ids through symbolMap
+    public void append(TokenBuffer other, int lineOffset, int[] symbolMap) {
+        int newSize = size + other.size;
+        if (newSize > kind.length) {
+            int capacity = Math.max(newSize, kind.length * 2);
+            kind   = Arrays.copyOf(kind, capacity);
+            start  = Arrays.copyOf(start, capacity);
+            length = Arrays.copyOf(length, capacity);
+            line   = Arrays.copyOf(line, capacity);
+            column = Arrays.copyOf(column, capacity);
+            symbol = Arrays.copyOf(symbol, capacity);
+        }
+
+        System.arraycopy(other.kind, 0, kind, size, other.size);
+        System.arraycopy(other.start, 0, start, size, other.size);
+        System.arraycopy(other.length, 0, length, size, other.size);
+        System.arraycopy(other.column, 0, column, size, other.size);
+        for (int i = 0; i < other.size; i++) {
+            line[size + i]   = other.line[i] + lineOffset;
+            symbol[size + i] = symbolMap[other.symbol[i]];
+        }
+        size = newSize;
+    }
+
+    // appends tokens [from, to) of other, which share this buffer's pool,
+    // adding startShift to their offsets and lineShift to their line numbers
+    public void appendRange(TokenBuffer other, int from, int to, int startShift, int lineShift) {
+        int count = to - from;
+        int newSize = size + count;
+        if (newSize > kind.length) {
+            int capacity = Math.max(newSize, kind.length * 2);
+            kind   = Arrays.copyOf(kind, capacity);
+            start  = Arrays.copyOf(start, capacity);
+            length = Arrays.copyOf(length, capacity);
+            line   = Arrays.copyOf(line, capacity);
+            column = Arrays.copyOf(column, capacity);
+            symbol = Arrays.copyOf(symbol, capacity);
+        }
+
+        System.arraycopy(other.kind, from, kind, size, count);
+        System.arraycopy(other.length, from, length, size, count);
+        System.arraycopy(other.column, from, column, size, count);
+        System.arraycopy(other.symbol, from, symbol, size, count);
+        for (int i = 0; i < count; i++) {
+            start[size + i] = other.start[from + i] + startShift;
+            line[size + i]  = other.line[from + i] + lineShift;
+        }
+        size = newSize;
+    }
+
+    // drops every token, keeping the arrays for reuse
+    // symbols stay in the pool so their ids remain valid
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getKind(int i) {
+        return kind[i];
+    }
+
+    public int getStart(int i) {
+        return start[i];
+    }
+
+    public int getLength(int i) {
+        return length[i];
+    }
+
+    public int getLine(int i) {
+        return line[i];
+    }
+
+    public int getColumn(int i) {
+        return column[i];
+    }
+
+    public int getSymbol(int i) {
+        return symbol[i];
+    }
+
+    public String getLexeme(int i) {
+        return pool.get(symbol[i]);
+    }
+
+    // first byte of the lexeme, enough to tell literal types apart
+    public char firstChar(int i) {
+        return pool.firstChar(symbol[i]);
+    }
+
+    // a Token view of token i, for debugging output only
+    public Token getToken(int i) {
+        return new Token(kind[i], getLexeme(i));
+    }
+
+    private void grow() {
+        int newSize = kind.length * 2;
+        kind   = Arrays.copyOf(kind, newSize);
+        start  = Arrays.copyOf(start, newSize);
+        length = Arrays.copyOf(length, newSize);
+        line   = Arrays.copyOf(line, newSize);
+        column = Arrays.copyOf(column, newSize);
+        symbol = Arrays.copyOf(symbol, newSize);
+    }
+}
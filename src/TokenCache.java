@@ -0,0 +1,170 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * TokenCache.java
+ *
+ * The tokens of the last version of one source file, by line, so the
+ * Scanner only runs the DFA over the lines an edit changed. A line is
+ * scanned the same way whenever its bytes and the DFA state it is entered
+ * in are the same, so the lines before the first changed byte keep their
+ * tokens, and so do the lines after the last changed byte once scanning
+ * reaches one of them in the state it was entered in before. Every
+ * version is scanned into the same SymbolPool, so the symbol ids of kept
+ * tokens stay valid.
+ *
+ * Used by watch mode, one cache per file, by one thread at a time.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TokenCache {
+    private SymbolPool symbols;
+
+    // the last version, none before the first scan
+    private byte[]  bytes;        // its source
+    private int     length;       // bytes of source in use
+    private int     lineCount;
+    private int[]   lineStart;    // offset of each line, lineStart[lineCount] is length
+    private int[]   entryState;   // DFA state each line is entered in, the last one the final state
+    private boolean[] entryComment; // the same for the comment flag
+    private int[]   firstToken;   // index of the first token of each line
+    private TokenBuffer tokens;
+    private ArrayList<Diagnostic> errors; // in line order
+
+    private int scannedLines; // lines the last scan ran the DFA over, -1 once taken
+
+    public TokenCache() {
+        this.symbols   = new SymbolPool();
+        this.lineCount = -1;
+        this.scannedLines = -1;
+    }
+
+    public SymbolPool getSymbols() {
+        return symbols;
+    }
+
+    // true once a version has been scanned
+    boolean hasVersion() {
+        return lineCount >= 0;
+    }
+
+    int getLineCount() {
+        return lineCount;
+    }
+
+    int getLineStart(int line) {
+        return lineStart[line];
+    }
+
+    int getEntryState(int line) {
+        return entryState[line];
+    }
+
+    boolean getEntryComment(int line) {
+        return entryComment[line];
+    }
+
+    int getFirstToken(int line) {
+        return firstToken[line];
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    // number of leading lines of the last version that source[0, limit)
+    // starts with, terminators and the byte after them included
+    int sharedLines(ByteBuffer source, int limit) {
+        ByteBuffer last = ByteBuffer.wrap(bytes);
+        int same = 0;
+        int end  = Math.min(length, limit);
+        while (same + 8 <= end && source.getLong(same) == last.getLong(same)) {
+            same += 8;
+        }
+        while (same < end && source.get(same) == bytes[same]) {
+            same++;
+        }
+        if (same == length && same == limit) {
+            return lineCount;
+        }
+        int line = 0;
+        while (line < lineCount && lineStart[line + 1] < same) {
+            line++;
+        }
+        return line;
+    }
+
+    // offset in source[0, limit) from which it ends like the last version
+    int sharedEnd(ByteBuffer source, int limit) {
+        ByteBuffer last = ByteBuffer.wrap(bytes);
+        int same = 0;
+        int max  = Math.min(length, limit);
+        while (same + 8 <= max && source.getLong(limit - 8 - same) == last.getLong(length - 8 - same)) {
+            same += 8;
+        }
+        while (same < max && source.get(limit - 1 - same) == bytes[length - 1 - same]) {
+            same++;
+        }
+        return limit - same;
+    }
+
+    // the line of the last version starting at offset, -1 when none does
+    int lineAt(int offset) {
+        int low  = 0;
+        int high = lineCount;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (lineStart[middle] < offset) {
+                low = middle + 1;
+            } else if (lineStart[middle] > offset) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    // appends the tokens and errors of lines [from, to) of the last
+    // version, moved by startShift bytes and lineShift lines
+    void copyLines(TokenBuffer to, List<Diagnostic> errors, int from, int end, int startShift, int lineShift) {
+        to.appendRange(tokens, firstToken[from], firstToken[end], startShift, lineShift);
+        // line numbers of diagnostics start at 1
+        for (Diagnostic d : this.errors) {
+            if (d.getLine() > from && d.getLine() <= end) {
+                errors.add(new Diagnostic(d.getLine() + lineShift, d.getColumn(), d.getMessage()));
+            }
+        }
+    }
+
+    // makes what a Scanner found the last version
+    void update(ByteBuffer source, int limit, int lineCount, int[] lineStart, int[] entryState,
+            boolean[] entryComment, int[] firstToken, TokenBuffer tokens, List<Diagnostic> errors,
+            int scannedLines) {
+        if (bytes == null || bytes.length < limit) {
+            bytes = new byte[limit];
+        }
+        ByteBuffer whole = source.duplicate();
+        whole.position(0);
+        whole.get(bytes, 0, limit);
+        this.length       = limit;
+        this.lineCount    = lineCount;
+        this.lineStart    = lineStart;
+        this.entryState   = entryState;
+        this.entryComment = entryComment;
+        this.firstToken   = firstToken;
+        this.tokens       = tokens;
+        this.errors       = new ArrayList<Diagnostic>(errors);
+        this.scannedLines = scannedLines;
+    }
+
+    // lines the last scan ran the DFA over, the others were kept; -1 when
+    // there was no scan since the last call
+    public int takeScannedLines() {
+        int scanned = scannedLines;
+        scannedLines = -1;
+        return scanned;
+    }
+}
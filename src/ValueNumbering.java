@@ -0,0 +1,384 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * ValueNumbering.java
+ *
+ * Common subexpression elimination and copy propagation over an
+ * IrProgram whose variables are virtual registers. A pure instruction
+ * computing what some register already holds becomes a COPY of that
+ * register, and reads of a copy read the register it was copied from.
+ *
+ * Within a block a value is known until one of its operands or the
+ * register holding it is written again. A register written by a single
+ * instruction outside every loop has the same value everywhere that
+ * instruction dominates, so values made only from such registers are
+ * also known in the blocks dominated by the one computing them; the
+ * blocks are walked down the dominator tree and those values are
+ * forgotten on the way back up. Inside a loop the one write runs again
+ * on every pass, and the passes after this one rewrite such registers,
+ * so values computed there are only reused within their block.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class ValueNumbering {
+    private ArrayList<BasicBlock> blocks;
+    private int[] idom;      // immediate dominator by layout position, -1 for the entry
+    private int[] writes;    // instructions writing each register
+    private int[] defBlock;  // position of the block of the one write, when there is one
+    private int[] defIndex;  // index of that write in its block
+    private boolean[] inLoop; // blocks on a cycle, by layout position
+    private ArrayList<ArrayList<Integer>> predecessors; // of each block, by layout position
+
+    // values known in the blocks the current one dominates, by key(), and
+    // "copy r" for a register that holds the same as another
+    private HashMap<String, Integer> dominating;
+    private ArrayList<String>  undoKeys;   // entries of dominating in the order they were set
+    private ArrayList<Integer> undoValues; // what they replaced, null if nothing
+
+    // values known in the current block only
+    private HashMap<String, Instruction> local;  // key() -> instruction computing it
+    private HashMap<Integer, Integer>    copies; // register -> register it is a copy of
+
+    // what kill() has to look at for each register, so a write does not
+    // go over everything known in a long block
+    private HashMap<Integer, ArrayList<String>>  users;  // register -> keys of local naming it
+    private HashMap<Integer, ArrayList<Integer>> copied; // register -> registers in copies copying it
+
+    public ValueNumbering(IrProgram program) {
+        this.blocks     = program.getBlocks();
+        this.dominating = new HashMap<String, Integer>();
+        this.undoKeys   = new ArrayList<String>();
+        this.undoValues = new ArrayList<Integer>();
+
+        int count = program.getValueCount();
+        writes   = new int[count];
+        defBlock = new int[count];
+        defIndex = new int[count];
+        for (int b = 0; b < blocks.size(); b++) {
+            ArrayList<Instruction> code = blocks.get(b).getInstructions();
+            for (int n = 0; n < code.size(); n++) {
+                int dest = code.get(n).getDest();
+                if (dest != Instruction.NONE) {
+                    writes[dest]++;
+                    defBlock[dest] = b;
+                    defIndex[dest] = n;
+                }
+            }
+        }
+        findDominators(program.getBlockCount());
+        findLoops();
+    }
+
+    // rewrites the program, walking the dominator tree from the entry
+    public void run() {
+        int size = blocks.size();
+        ArrayList<ArrayList<Integer>> children = new ArrayList<ArrayList<Integer>>(size);
+        for (int b = 0; b < size; b++) {
+            children.add(new ArrayList<Integer>());
+        }
+        for (int b = 1; b < size; b++) {
+            if (idom[b] != -1) {
+                children.get(idom[b]).add(b);
+            }
+        }
+
+        int[] mark = new int[size]; // undoKeys.size() on entering each block
+        ArrayList<Integer> stack = new ArrayList<Integer>();
+        stack.add(0);
+        while (!stack.isEmpty()) {
+            int b = stack.remove(stack.size() - 1);
+            if (b < 0) {
+                undo(mark[~b]);
+                continue;
+            }
+            mark[b] = undoKeys.size();
+            number(b);
+            stack.add(~b);
+            stack.addAll(children.get(b));
+        }
+    }
+
+    private void number(int b) {
+        local  = new HashMap<String, Instruction>();
+        copies = new HashMap<Integer, Integer>();
+        users  = new HashMap<Integer, ArrayList<String>>();
+        copied = new HashMap<Integer, ArrayList<Integer>>();
+        ArrayList<Instruction> code = blocks.get(b).getInstructions();
+        for (int n = 0; n < code.size(); n++) {
+            Instruction i = code.get(n);
+            if (i.getLeft() != Instruction.NONE) {
+                i.setLeft(resolve(i.getLeft()));
+            }
+            if (i.getRight() != Instruction.NONE) {
+                i.setRight(resolve(i.getRight()));
+            }
+            int dest = i.getDest();
+            if (dest == Instruction.NONE) {
+                continue;
+            } else if (!i.isPure()) {
+                kill(dest);
+                continue;
+            } else if (i.getOp() == Instruction.COPY) {
+                kill(dest);
+                copy(dest, i.getLeft(), b, n);
+                continue;
+            }
+
+            String key = key(i);
+            Instruction known = local.get(key);
+            Integer held = (known != null) ? Integer.valueOf(known.getDest()) : dominating.get(key);
+            kill(dest);
+            if (held != null) {
+                code.set(n, Instruction.copy(dest, held, i.getType()).comment(i.getComment()));
+                copy(dest, held, b, n);
+            } else if (dest != i.getLeft() && dest != i.getRight()) {
+                // constants are only reused nearby, a register held for one
+                // over many blocks costs more than loading it again
+                if (i.getOp() != Instruction.CONST && writes[dest] == 1 && !inLoop[b]
+                        && isFixed(i.getLeft(), b, n) && isFixed(i.getRight(), b, n)) {
+                    set(key, dest);
+                } else {
+                    local.put(key, i);
+                    use(i.getDest(), key);
+                    use(i.getLeft(), key);
+                    use(i.getRight(), key);
+                }
+            }
+        }
+    }
+
+    // dest = source was just seen at index n of block b
+    private void copy(int dest, int source, int b, int n) {
+        if (dest == source) {
+            return;
+        } else if (writes[dest] == 1 && !inLoop[b] && isFixed(source, b, n)) {
+            set("copy " + dest, source);
+        } else {
+            copies.put(dest, source);
+            ArrayList<Integer> dests = copied.get(source);
+            if (dests == null) {
+                dests = new ArrayList<Integer>();
+                copied.put(source, dests);
+            }
+            dests.add(dest);
+        }
+    }
+
+    // key of local names value
+    private void use(int value, String key) {
+        if (value == Instruction.NONE) {
+            return;
+        }
+        ArrayList<String> keys = users.get(value);
+        if (keys == null) {
+            keys = new ArrayList<String>();
+            users.put(value, keys);
+        }
+        keys.add(key);
+    }
+
+    // register holding the same value as value, at this point
+    private int resolve(int value) {
+        Integer source = copies.get(value);
+        if (source == null) {
+            source = dominating.get("copy " + value);
+        }
+        return (source != null) ? source : value;
+    }
+
+    // forgets everything in the block that depends on value, about to be written
+    private void kill(int value) {
+        ArrayList<String> keys = users.remove(value);
+        if (keys != null) {
+            for (String key : keys) {
+                // the key may have been killed and set again since
+                Instruction i = local.get(key);
+                if (i != null && (i.getDest() == value || i.getLeft() == value || i.getRight() == value)) {
+                    local.remove(key);
+                }
+            }
+        }
+        copies.remove(value);
+        ArrayList<Integer> dests = copied.remove(value);
+        if (dests != null) {
+            for (int dest : dests) {
+                Integer source = copies.get(dest);
+                if (source != null && source == value) {
+                    copies.remove(dest);
+                }
+            }
+        }
+    }
+
+    // true when value is no register, or has the same value from before
+    // index n of block b on to the end of every block b dominates
+    private boolean isFixed(int value, int b, int n) {
+        if (value == Instruction.NONE) {
+            return true;
+        } else if (writes[value] != 1 || inLoop[defBlock[value]]) {
+            return false;
+        } else if (defBlock[value] == b) {
+            return defIndex[value] < n;
+        }
+        return dominates(defBlock[value], b);
+    }
+
+    // fills inLoop: for every edge back to a block h dominating its
+    // source, h and the blocks reaching the source without going through h
+    private void findLoops() {
+        int size = blocks.size();
+        inLoop = new boolean[size];
+        ArrayList<Integer> work = new ArrayList<Integer>();
+        for (int h = 0; h < size; h++) {
+            for (int latch : predecessors.get(h)) {
+                if (!dominates(h, latch)) {
+                    continue;
+                }
+                boolean[] seen = new boolean[size];
+                seen[h] = true;
+                inLoop[h] = true;
+                work.add(latch);
+                while (!work.isEmpty()) {
+                    int b = work.remove(work.size() - 1);
+                    if (!seen[b]) {
+                        seen[b] = true;
+                        inLoop[b] = true;
+                        work.addAll(predecessors.get(b));
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean dominates(int a, int b) {
+        while (b != -1 && b != a) {
+            b = idom[b];
+        }
+        return b == a;
+    }
+
+    // what i computes, the same for instructions computing the same value
+    private static String key(Instruction i) {
+        int op    = i.getOp();
+        int left  = i.getLeft();
+        int right = i.getRight();
+        if (op == Instruction.GREATER) {
+            // a > b is b < a
+            op    = Instruction.LESS;
+            left  = i.getRight();
+            right = i.getLeft();
+        } else if ((op == Instruction.ADD || op == Instruction.MUL || op == Instruction.AND
+                || op == Instruction.OR || op == Instruction.EQUAL || op == Instruction.NOT_EQUAL)
+                && left > right) {
+            left  = i.getRight();
+            right = i.getLeft();
+        }
+        // a wrapping ADD or SUB may not stand in for a trapping one
+        String wraps = i.isWrapping() ? "u " : " ";
+        return op + wraps + i.getType() + " " + i.getValue() + " " + left + " " + right;
+    }
+
+    private void set(String key, int value) {
+        undoKeys.add(key);
+        undoValues.add(dominating.put(key, value));
+    }
+
+    // takes back the entries of dominating set since undoKeys had size mark
+    private void undo(int mark) {
+        while (undoKeys.size() > mark) {
+            String  key      = undoKeys.remove(undoKeys.size() - 1);
+            Integer previous = undoValues.remove(undoValues.size() - 1);
+            if (previous == null) {
+                dominating.remove(key);
+            } else {
+                dominating.put(key, previous);
+            }
+        }
+    }
+
+    // fills idom, with the iterative algorithm of Cooper, Harvey and Kennedy
+    // over the blocks in reverse postorder
+    private void findDominators(int blockCount) {
+        int size = blocks.size();
+        int[] position = new int[blockCount];
+        for (int b = 0; b < size; b++) {
+            position[blocks.get(b).getNumber()] = b;
+        }
+        predecessors = new ArrayList<ArrayList<Integer>>(size);
+        for (int b = 0; b < size; b++) {
+            predecessors.add(new ArrayList<Integer>());
+        }
+        for (int b = 0; b < size; b++) {
+            for (BasicBlock s : blocks.get(b).getSuccessors()) {
+                predecessors.get(position[s.getNumber()]).add(b);
+            }
+        }
+
+        // postorder by a depth first search from the entry
+        int[]     order   = new int[size]; // number of each block in postorder
+        int[]     ordered = new int[size]; // blocks by their number in postorder
+        int       visited = 0;
+        boolean[] seen    = new boolean[size];
+        int[]     stack   = new int[size];
+        int[]     next    = new int[size]; // successor to look at next, per block on the stack
+        int       top     = 0;
+        stack[top++] = 0;
+        seen[0] = true;
+        while (top > 0) {
+            int b = stack[top - 1];
+            ArrayList<BasicBlock> successors = blocks.get(b).getSuccessors();
+            if (next[b] < successors.size()) {
+                int s = position[successors.get(next[b]++).getNumber()];
+                if (!seen[s]) {
+                    seen[s] = true;
+                    stack[top++] = s;
+                }
+            } else {
+                top--;
+                order[b] = visited;
+                ordered[visited++] = b;
+            }
+        }
+
+        idom = new int[size];
+        Arrays.fill(idom, -1);
+        idom[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = visited - 1; k >= 0; k--) {
+                int b = ordered[k];
+                if (b == 0) {
+                    continue;
+                }
+                int dominator = -1;
+                for (int p : predecessors.get(b)) {
+                    if (idom[p] == -1) {
+                        continue;
+                    }
+                    if (dominator == -1) {
+                        dominator = p;
+                        continue;
+                    }
+                    int x = p;
+                    while (x != dominator) {
+                        while (order[x] < order[dominator]) {
+                            x = idom[x];
+                        }
+                        while (order[dominator] < order[x]) {
+                            dominator = idom[dominator];
+                        }
+                    }
+                }
+                if (dominator != idom[b]) {
+                    idom[b] = dominator;
+                    changed = true;
+                }
+            }
+        }
+        idom[0] = -1;
+    }
+}
@@ -9,23 +9,28 @@
 public class Variable extends Token {
     private char type;   // types include i for integer, l for logical, s for string
     private int  offset; // offset assigned by the symbol table
+    private int  symbol; // interned id of the name, see SymbolPool
+    private int  number; // position in declaration order, given by the symbol table
 
-    public Variable(int tokenNumber, String lexeme, char type) {
-        super(tokenNumber, lexeme.toLowerCase());
+    // lexeme is expected to be case folded already, like the Scanner's
+    public Variable(int tokenNumber, String lexeme, int symbol, char type) {
+        super(tokenNumber, lexeme);
+        this.symbol = symbol;
         this.type = type;
     }
 
-    public Variable(int tokenNumber, String lexeme, char type, int offset) {
-        this(tokenNumber, lexeme.toLowerCase(), type);
+    public Variable(int tokenNumber, String lexeme, int symbol, char type, int offset) {
+        this(tokenNumber, lexeme, symbol, type);
         this.offset = offset;
     }
 
     public Variable(Variable v) {
-        this(v.getTokenNumber(), v.getLexeme(), v.getType(), v.getOffset());
+        this(v.getTokenNumber(), v.getLexeme(), v.getSymbol(), v.getType(), v.getOffset());
+        this.number = v.getNumber();
     }
 
-    public Variable(Token t, char type) {
-        this(t.getTokenNumber(), t.getLexeme(), type);
+    public int getSymbol() {
+        return symbol;
     }
 
     public void setType(char type) {
@@ -44,6 +49,14 @@ public class Variable extends Token {
         return offset;
     }
 
+    public void setNumber(int number) {
+        this.number = number;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
     @Override
     public String toString() {
         String str = new String();
@@ -0,0 +1,184 @@
+/*
+ * Nick Pagsanjan
+ * CS 4110 - Compiler Design
+ * Watcher.java
+ *
+ * Watch mode, java Main --watch dir: compiles every .c file under dir,
+ * then waits on a WatchService and compiles each file again when it is
+ * saved, file.c to file.s like a batch. The compiler stays loaded and
+ * warm between compilations, and every file keeps a TokenCache so only
+ * the lines an edit touched are scanned again. Editors often write a
+ * file several times for one save, so changes are collected until none
+ * has come for DEBOUNCE milliseconds before anything is compiled.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+
+public class Watcher {
+    private static final long   DEBOUNCE = 50; // quiet milliseconds that end a burst of changes
+    private static final String SOURCE   = ".c";
+
+    private Options options;
+    private Path directory;
+    private WatchService service;
+    private HashMap<WatchKey, Path> directories; // every directory watched, by its key
+    private HashMap<Path, TokenCache> caches;    // last version of every source compiled
+
+    public Watcher(Options options) {
+        this.options     = options;
+        this.directory   = Paths.get(options.getWatchDirectory()).toAbsolutePath().normalize();
+        this.directories = new HashMap<WatchKey, Path>();
+        this.caches      = new HashMap<Path, TokenCache>();
+    }
+
+    // compiles every source, then every change, until the process is stopped
+    public void run() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            throw new IllegalArgumentException("Cannot watch " + directory + ", it is not a directory");
+        }
+        service = FileSystems.getDefault().newWatchService();
+        try {
+            LinkedHashSet<Path> changed = new LinkedHashSet<Path>(register(directory));
+            System.out.println("Watching " + directory);
+            while (true) {
+                compileAll(changed);
+                changed = waitForChanges();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            service.close();
+        }
+    }
+
+    // blocks until something changed and then stayed quiet for DEBOUNCE
+    // milliseconds, returns the sources to compile again
+    private LinkedHashSet<Path> waitForChanges() throws IOException, InterruptedException {
+        LinkedHashSet<Path> changed = new LinkedHashSet<Path>();
+        boolean overflow = false;
+        WatchKey key = service.take();
+        while (key != null) {
+            Path watched = directories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || watched == null) {
+                    overflow = true;
+                    continue;
+                }
+                Path file = watched.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file)) {
+                    changed.addAll(register(file));
+                } else if (isSource(file)) {
+                    changed.add(file);
+                }
+            }
+            if (!key.reset()) {
+                // the directory is gone
+                directories.remove(key);
+            }
+            key = service.poll(DEBOUNCE, TimeUnit.MILLISECONDS);
+        }
+
+        if (overflow) {
+            // events were lost, compile everything that is there
+            changed.addAll(register(directory));
+        }
+        return changed;
+    }
+
+    // compiles every source in changed and drops the ones that are gone
+    private void compileAll(LinkedHashSet<Path> changed) {
+        for (Path file : changed) {
+            if (Files.isRegularFile(file)) {
+                compile(file);
+            } else if (caches.remove(file) != null) {
+                System.out.println(directory.relativize(file) + ": removed");
+            }
+        }
+    }
+
+    // compiles file, then prints how long that took and its messages
+    private void compile(Path file) {
+        TokenCache cache = caches.get(file);
+        if (cache == null) {
+            cache = new TokenCache();
+            caches.put(file, cache);
+        }
+
+        String source  = file.toString();
+        String listing = (options.getListingPath() == null) ? null : Options.batchPath(source, ".listing.txt");
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer);
+        String report;
+        long start = System.nanoTime();
+        try {
+            boolean compiled = Main.compile(options, source, null, Options.batchPath(source, ".s"),
+                listing, out, null, cache);
+            long micros = (System.nanoTime() - start) / 1000;
+            report = (compiled ? "compiled" : "errors") + " in " + (micros / 1000) + '.'
+                + (micros / 100 % 10) + " ms";
+            int scanned = cache.takeScannedLines();
+            if (scanned >= 0) {
+                // not scanned at all on a hit of the compilation cache
+                report += ", scanned " + scanned + " of " + cache.getLineCount() + " lines";
+            }
+        } catch (IOException e) {
+            out.println(e.getMessage());
+            report = "not compiled";
+        } catch (RuntimeException e) {
+            // keep watching the other files, and start this one over
+            out.println("compilation stopped: " + e);
+            caches.remove(file);
+            report = "not compiled";
+        }
+        out.close();
+
+        System.out.println(directory.relativize(file) + ": " + report);
+        System.out.print(buffer.toString());
+        System.out.flush();
+    }
+
+    // watches dir and every directory under it, returns the sources in
+    // them; directories already watched keep their key
+    private ArrayList<Path> register(Path dir) throws IOException {
+        final ArrayList<Path> found = new ArrayList<Path>();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attributes) throws IOException {
+                WatchKey key = d.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && isSource(file)) {
+                    found.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(found);
+        return found;
+    }
+
+    private static boolean isSource(Path file) {
+        return file.getFileName().toString().endsWith(SOURCE);
+    }
+}